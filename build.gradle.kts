@@ -43,6 +43,9 @@ dependencies {
     compileOnly("com.sk89q.worldguard", "worldguard-bukkit", "7.0.0") {
         exclude(module = "bukkit")
     }
+
+    // PERMISSION PLUGINS
+    compileOnly("net.luckperms", "api", "5.4")
 }
 
 
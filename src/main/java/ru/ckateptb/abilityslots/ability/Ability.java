@@ -17,6 +17,7 @@
 
 package ru.ckateptb.abilityslots.ability;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.bukkit.World;
 import org.bukkit.entity.LivingEntity;
@@ -38,12 +39,34 @@ import java.util.Collections;
 @Getter
 public abstract class Ability {
     protected final AbilityInstanceService instanceService = IoC.get(AbilityInstanceService.class);
+    @Getter(AccessLevel.NONE)
+    private final AbilityService abilityService = IoC.get(AbilityService.class);
     protected AbilityUser user;
     protected LivingEntity livingEntity;
     protected World world;
+    @Getter(AccessLevel.NONE)
+    private AbilityInformation information;
+    @Getter(AccessLevel.NONE)
+    private int informationGeneration;
+    @Getter(AccessLevel.NONE)
+    final AbilityRegistration registration = new AbilityRegistration();
+    // Compute phase state, see AbilityComputePhase
+    @Getter(AccessLevel.NONE)
+    boolean computePending;
+    @Getter(AccessLevel.NONE)
+    boolean computeFailed;
 
     public abstract ActivateResult activate(ActivationMethod method);
 
+    /**
+     * Prepare the next update off the main thread, e.g. advance a projectile or test colliders.
+     * <p>
+     * Called only for abilities with {@link AbilityInfo#concurrentCompute()} enabled, concurrently with other instances.
+     * Implementations must not touch the world or any shared state, the result should be applied in {@link #update()}.
+     */
+    public void compute() {
+    }
+
     public abstract UpdateResult update();
 
     public abstract void destroy();
@@ -55,9 +78,17 @@ public abstract class Ability {
     }
 
     public AbilityInformation getInformation() {
-        AbilityService abilityService = IoC.get(AbilityService.class);
-        AbilityInfo info = getClass().getAnnotation(AbilityInfo.class);
-        return abilityService.getAbility(info.name());
+        // Information is recreated on reload, so the binding is only valid for the generation it was made in
+        if (information == null || informationGeneration != abilityService.getGeneration()) {
+            AbilityInfo info = getClass().getAnnotation(AbilityInfo.class);
+            setInformation(abilityService.getAbility(info.name()));
+        }
+        return information;
+    }
+
+    public void setInformation(AbilityInformation information) {
+        this.information = information;
+        this.informationGeneration = abilityService.getGeneration();
     }
 
     public Collection<Collider> getColliders() {
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.ability;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Dense array of ability instances with O(1) swap-remove.
+ * <p>
+ * Every instance remembers its position in each bucket kind it belongs to, so removal does not search.
+ * The bucket itself is a read-only live {@link java.util.List} view, iterating it does not copy anything.
+ */
+final class AbilityBucket extends AbstractList<Ability> implements RandomAccess {
+    static final int ALL = 0;
+    static final int USER = 1;
+    static final int TYPE = 2;
+    static final int USER_TYPE = 3;
+    static final int WHEEL = 4;
+    static final int KINDS = 5;
+
+    private final int kind;
+    private Ability[] elements = new Ability[8];
+    private int size = 0;
+
+    AbilityBucket(int kind) {
+        this.kind = kind;
+    }
+
+    static int[] newIndex() {
+        int[] index = new int[KINDS];
+        Arrays.fill(index, -1);
+        return index;
+    }
+
+    void append(Ability ability) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+        ability.registration.bucketIndex[kind] = size;
+        elements[size++] = ability;
+    }
+
+    boolean remove(Ability ability) {
+        int index = ability.registration.bucketIndex[kind];
+        if (index < 0 || index >= size || elements[index] != ability) return false;
+        int last = --size;
+        if (index != last) {
+            Ability moved = elements[last];
+            elements[index] = moved;
+            moved.registration.bucketIndex[kind] = index;
+        }
+        elements[last] = null;
+        ability.registration.bucketIndex[kind] = -1;
+        return true;
+    }
+
+    Ability[] copyTo(Ability[] target) {
+        if (target.length < size) {
+            target = new Ability[Math.max(size, target.length << 1)];
+        }
+        System.arraycopy(elements, 0, target, 0, size);
+        return target;
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            elements[i].registration.bucketIndex[kind] = -1;
+            elements[i] = null;
+        }
+        size = 0;
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        if (!(object instanceof Ability ability)) return false;
+        int index = ability.registration.bucketIndex[kind];
+        return index >= 0 && index < size && elements[index] == ability;
+    }
+
+    @Override
+    public Ability get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException(index);
+        return elements[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
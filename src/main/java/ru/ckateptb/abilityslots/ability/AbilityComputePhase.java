@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.ability;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs {@link Ability#compute()} of thread-safe instances in parallel before the serial update.
+ * <p>
+ * A computed instance stays pending until its {@link Ability#update()} is called, so instances deferred by the
+ * update budget are not computed twice.
+ */
+public final class AbilityComputePhase {
+    private static final int THRESHOLD = 16;
+    private Ability[] batch = new Ability[64];
+
+    /**
+     * Compute the instances in {@code [from, to)} of the queue
+     *
+     * @param pool the workers, null to compute on the calling thread
+     */
+    public void compute(ForkJoinPool pool, Ability[] instances, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            Ability ability = instances[i];
+            if (ability.computePending || !ability.getInformation().isConcurrentCompute()) continue;
+            if (count == batch.length) {
+                batch = Arrays.copyOf(batch, count << 1);
+            }
+            batch[count++] = ability;
+        }
+        if (count == 0) return;
+        if (pool == null || count <= THRESHOLD) {
+            compute(batch, 0, count);
+        } else {
+            pool.invoke(new ComputeTask(batch, 0, count));
+        }
+        Arrays.fill(batch, 0, count, null);
+    }
+
+    /**
+     * Must be called before the instance update.
+     *
+     * @return false if the last compute of this instance failed and it should be removed
+     */
+    public boolean complete(Ability ability) {
+        ability.computePending = false;
+        if (ability.computeFailed) {
+            ability.computeFailed = false;
+            return false;
+        }
+        return true;
+    }
+
+    private static void compute(Ability[] batch, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Ability ability = batch[i];
+            try {
+                ability.compute();
+            } catch (Exception e) {
+                e.printStackTrace();
+                ability.computeFailed = true;
+            }
+            ability.computePending = true;
+        }
+    }
+
+    private static class ComputeTask extends RecursiveAction {
+        private final Ability[] batch;
+        private final int from;
+        private final int to;
+
+        private ComputeTask(Ability[] batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                AbilityComputePhase.compute(batch, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ComputeTask(batch, from, middle), new ComputeTask(batch, middle, to));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.ability;
+
+import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
+import ru.ckateptb.abilityslots.user.AbilityUser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of live ability instances.
+ * <p>
+ * All instances are kept in one dense array and additionally indexed per user, per ability class and per user and
+ * ability class. Registration and removal are O(1), iteration and lookups return live read-only views and do not
+ * allocate. Classes are matched exactly, subclasses are indexed separately.
+ * <p>
+ * Instances are also placed into timing wheels by their update interval: a wheel of interval {@code n} has {@code n}
+ * buckets and an instance stays in one of them, so every tick only the due buckets are visited.
+ * <p>
+ * Each registered instance gets a handle that packs a slot and its generation. The generation is bumped when the
+ * slot is released, so a handle kept after the instance was destroyed never resolves to another instance.
+ */
+public final class AbilityInstanceRegistry {
+    public static final long INVALID_HANDLE = -1;
+
+    private final AbilityBucket instances = new AbilityBucket(AbilityBucket.ALL);
+    private final Map<AbilityUser, AbilityBucket> userInstances = new HashMap<>();
+    private final Map<Class<? extends Ability>, AbilityBucket> typeInstances = new HashMap<>();
+    private final Map<AbilityUser, Map<Class<? extends Ability>, AbilityBucket>> userTypeInstances = new HashMap<>();
+    private final Map<Integer, AbilityBucket[]> wheelsByInterval = new HashMap<>();
+    private final List<AbilityBucket[]> wheels = new ArrayList<>();
+    private Ability[] slots = new Ability[64];
+    private int[] generations = new int[64];
+    private int[] freeSlots = new int[64];
+    private int freeCount = 0;
+    private int slotCount = 0;
+
+    public long register(AbilityUser user, Ability ability) {
+        if (contains(ability)) return ability.registration.handle;
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotCount == slots.length) {
+                slots = Arrays.copyOf(slots, slotCount << 1);
+                generations = Arrays.copyOf(generations, slotCount << 1);
+            }
+            slot = slotCount++;
+        }
+        slots[slot] = ability;
+        ability.registration.handle = ((long) generations[slot] << 32) | slot;
+        instances.append(ability);
+        typeInstances.computeIfAbsent(ability.getClass(), key -> new AbilityBucket(AbilityBucket.TYPE)).append(ability);
+        indexUser(user, ability);
+        schedule(ability);
+        return ability.registration.handle;
+    }
+
+    public boolean unregister(Ability ability) {
+        if (!contains(ability)) return false;
+        instances.remove(ability);
+        AbilityBucket typeBucket = typeInstances.get(ability.getClass());
+        if (typeBucket != null) {
+            typeBucket.remove(ability);
+        }
+        unindexUser(ability);
+        if (ability.registration.wheelBucket != null) {
+            ability.registration.wheelBucket.remove(ability);
+            ability.registration.wheelBucket = null;
+        }
+        releaseSlot(ability);
+        return true;
+    }
+
+    public void changeOwner(Ability ability, AbilityUser user) {
+        if (!contains(ability)) return;
+        unindexUser(ability);
+        indexUser(user, ability);
+    }
+
+    public boolean contains(Ability ability) {
+        return ability != null && get(ability.registration.handle) == ability;
+    }
+
+    public Ability get(long handle) {
+        if (handle == INVALID_HANDLE) return null;
+        int slot = (int) handle;
+        if (slot < 0 || slot >= slotCount) return null;
+        if (generations[slot] != (int) (handle >>> 32)) return null;
+        return slots[slot];
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+    public List<Ability> getInstances() {
+        return instances;
+    }
+
+    public List<Ability> getInstances(AbilityUser user) {
+        AbilityBucket bucket = userInstances.get(user);
+        return bucket == null ? Collections.emptyList() : bucket;
+    }
+
+    public List<Ability> getInstances(Class<? extends Ability> type) {
+        AbilityBucket bucket = typeInstances.get(type);
+        return bucket == null ? Collections.emptyList() : bucket;
+    }
+
+    public List<Ability> getInstances(AbilityUser user, Class<? extends Ability> type) {
+        Map<Class<? extends Ability>, AbilityBucket> buckets = userTypeInstances.get(user);
+        if (buckets == null) return Collections.emptyList();
+        AbilityBucket bucket = buckets.get(type);
+        return bucket == null ? Collections.emptyList() : bucket;
+    }
+
+    /**
+     * Copies all live instances into the target array, allocating a larger one only if it does not fit.
+     * The first {@link #size()} elements of the returned array are the instances.
+     */
+    public Ability[] copyInstances(Ability[] target) {
+        return instances.copyTo(target);
+    }
+
+    /**
+     * Appends the instances due on the given tick to the target array, skipping instances already present in it.
+     * The target must have room for {@link #size()} instances.
+     *
+     * @param offset the number of instances already queued at the start of the target
+     * @return the total number of queued instances
+     */
+    public int collectDue(long tick, Ability[] target, int offset) {
+        for (int i = 0; i < offset; i++) {
+            target[i].registration.queuedTick = tick;
+        }
+        int size = offset;
+        for (int i = 0, wheelCount = wheels.size(); i < wheelCount; i++) {
+            AbilityBucket[] wheel = wheels.get(i);
+            AbilityBucket bucket = wheel[(int) (tick % wheel.length)];
+            for (int j = 0, bucketSize = bucket.size(); j < bucketSize; j++) {
+                Ability ability = bucket.get(j);
+                if (ability.registration.queuedTick == tick) continue;
+                ability.registration.queuedTick = tick;
+                target[size++] = ability;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Forget the user index entry. The user must not own any instances at this point.
+     */
+    public void removeUser(AbilityUser user) {
+        AbilityBucket bucket = userInstances.get(user);
+        if (bucket != null && bucket.isEmpty()) {
+            userInstances.remove(user);
+            userTypeInstances.remove(user);
+        }
+    }
+
+    public void clear() {
+        for (int i = instances.size() - 1; i >= 0; i--) {
+            Ability ability = instances.get(i);
+            ability.registration.userBucket = null;
+            ability.registration.userTypeBucket = null;
+            ability.registration.wheelBucket = null;
+            releaseSlot(ability);
+        }
+        instances.clear();
+        userInstances.values().forEach(AbilityBucket::clear);
+        userInstances.clear();
+        typeInstances.values().forEach(AbilityBucket::clear);
+        typeInstances.clear();
+        userTypeInstances.values().forEach(buckets -> buckets.values().forEach(AbilityBucket::clear));
+        userTypeInstances.clear();
+        for (AbilityBucket[] wheel : wheels) {
+            for (AbilityBucket bucket : wheel) {
+                bucket.clear();
+            }
+        }
+    }
+
+    private void schedule(Ability ability) {
+        AbilityInformation information = ability.getInformation();
+        int interval = information == null ? 1 : Math.max(1, information.getUpdateInterval());
+        AbilityBucket[] wheel = wheelsByInterval.get(interval);
+        if (wheel == null) {
+            wheel = new AbilityBucket[interval];
+            for (int i = 0; i < interval; i++) {
+                wheel[i] = new AbilityBucket(AbilityBucket.WHEEL);
+            }
+            wheelsByInterval.put(interval, wheel);
+            wheels.add(wheel);
+        }
+        int phase = information == null ? -1 : information.getUpdatePhase();
+        if (phase < 0) {
+            // Spread the load of low-frequency abilities by picking the least loaded tick
+            phase = 0;
+            for (int i = 1; i < interval; i++) {
+                if (wheel[i].size() < wheel[phase].size()) {
+                    phase = i;
+                }
+            }
+        }
+        AbilityBucket bucket = wheel[phase % interval];
+        bucket.append(ability);
+        ability.registration.wheelBucket = bucket;
+    }
+
+    private void indexUser(AbilityUser user, Ability ability) {
+        AbilityBucket userBucket = userInstances.computeIfAbsent(user, key -> new AbilityBucket(AbilityBucket.USER));
+        userBucket.append(ability);
+        ability.registration.userBucket = userBucket;
+        AbilityBucket userTypeBucket = userTypeInstances.computeIfAbsent(user, key -> new HashMap<>())
+                .computeIfAbsent(ability.getClass(), key -> new AbilityBucket(AbilityBucket.USER_TYPE));
+        userTypeBucket.append(ability);
+        ability.registration.userTypeBucket = userTypeBucket;
+    }
+
+    private void unindexUser(Ability ability) {
+        if (ability.registration.userBucket != null) {
+            ability.registration.userBucket.remove(ability);
+            ability.registration.userBucket = null;
+        }
+        if (ability.registration.userTypeBucket != null) {
+            ability.registration.userTypeBucket.remove(ability);
+            ability.registration.userTypeBucket = null;
+        }
+    }
+
+    private void releaseSlot(Ability ability) {
+        int slot = (int) ability.registration.handle;
+        slots[slot] = null;
+        generations[slot]++;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount << 1);
+        }
+        freeSlots[freeCount++] = slot;
+        ability.registration.handle = INVALID_HANDLE;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.ability;
+
+/**
+ * Bookkeeping of {@link AbilityInstanceRegistry} for one instance, kept out of the public {@link Ability} API.
+ */
+final class AbilityRegistration {
+    long handle = AbilityInstanceRegistry.INVALID_HANDLE;
+    // Position in each bucket kind, see AbilityBucket
+    final int[] bucketIndex = AbilityBucket.newIndex();
+    AbilityBucket userBucket;
+    AbilityBucket userTypeBucket;
+    AbilityBucket wheelBucket;
+    long queuedTick = -1;
+}
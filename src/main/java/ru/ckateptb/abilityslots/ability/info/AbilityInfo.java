@@ -46,4 +46,21 @@ public @interface AbilityInfo {
     ActivationMethod[] activationMethods();
 
     boolean canBindToSlot() default true;
+
+    /**
+     * Marks {@link ru.ckateptb.abilityslots.ability.Ability#compute()} as thread-safe,
+     * so it can be called off the main thread before every update.
+     */
+    boolean concurrentCompute() default false;
+
+    /**
+     * How often (in ticks) the ability instances are updated.
+     */
+    int updateInterval() default 1;
+
+    /**
+     * The tick offset within {@link #updateInterval()} on which the instances are updated.
+     * Negative value spreads the instances evenly across the interval.
+     */
+    int updatePhase() default -1;
 }
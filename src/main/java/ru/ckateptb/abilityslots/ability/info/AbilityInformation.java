@@ -43,6 +43,17 @@ import java.util.stream.Collectors;
 public interface AbilityInformation extends Listener {
     String getName();
 
+    /**
+     * Dense index assigned by {@link AbilityService#registerAbility(AbilityInformation)}, -1 while unregistered.
+     * Implementations that do not store it stay at -1 and are handled without the ordinal indexes.
+     */
+    default int getOrdinal() {
+        return -1;
+    }
+
+    default void setOrdinal(int ordinal) {
+    }
+
     boolean isEnabled();
 
     void setEnabled(boolean enabled);
@@ -77,10 +88,39 @@ public interface AbilityInformation extends Listener {
 
     boolean isCanBindToSlot();
 
+    /**
+     * @return true if {@link Ability#compute()} may run outside the main thread
+     */
+    default boolean isConcurrentCompute() {
+        return false;
+    }
+
+    /**
+     * @return the number of ticks between updates of an instance
+     */
+    default int getUpdateInterval() {
+        return 1;
+    }
+
+    /**
+     * @return the tick offset within the interval, negative to spread instances automatically over the least loaded
+     * offsets
+     */
+    default int getUpdatePhase() {
+        return -1;
+    }
+
     String getAuthor();
 
     AbilityCategory getCategory();
 
+    /**
+     * @return permission node required to use this ability
+     */
+    default String getPermission() {
+        return ("abilityslots.abilities." + getCategory().getName() + "." + getName()).toLowerCase();
+    }
+
     Ability createAbility();
 
     Class<? extends Ability> getAbilityClass();
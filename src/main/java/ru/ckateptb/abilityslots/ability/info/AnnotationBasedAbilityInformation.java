@@ -17,6 +17,7 @@
 
 package ru.ckateptb.abilityslots.ability.info;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.SneakyThrows;
@@ -24,10 +25,14 @@ import org.bukkit.ChatColor;
 import ru.ckateptb.abilityslots.ability.Ability;
 import ru.ckateptb.abilityslots.ability.enums.ActivationMethod;
 import ru.ckateptb.abilityslots.category.AbilityCategory;
+import ru.ckateptb.abilityslots.service.AbilityUserService;
+import ru.ckateptb.abilityslots.service.ClockService;
 import ru.ckateptb.abilityslots.user.AbilityUser;
 import ru.ckateptb.abilityslots.util.TimeUtil;
+import ru.ckateptb.tablecloth.ioc.IoC;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -41,7 +46,21 @@ public class AnnotationBasedAbilityInformation implements AbilityInformation {
     private final String author;
     private final ActivationMethod[] activationMethods;
     private final boolean collisionParticipant;
+    private final boolean concurrentCompute;
+    private final int updateInterval;
+    private final int updatePhase;
+    private final String permission;
+    @Getter(AccessLevel.NONE)
+    private final ClockService clock = IoC.get(ClockService.class);
     private final Set<AbilityInformation> destroyAbilities = new HashSet<>();
+    // Row of the collision matrix, indexed by target ordinal
+    @Getter(AccessLevel.NONE)
+    private final BitSet destroyOrdinals = new BitSet();
+    // Set when a destroy ability was added before it got an ordinal
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean destroyUnindexed;
+    private int ordinal = -1;
     private long cooldown;
     private double cost;
     private boolean enabled;
@@ -64,6 +83,20 @@ public class AnnotationBasedAbilityInformation implements AbilityInformation {
         this.author = abilityInfo.author();
         this.activationMethods = abilityInfo.activationMethods();
         this.collisionParticipant = abilityClass.isAnnotationPresent(CollisionParticipant.class);
+        this.concurrentCompute = abilityInfo.concurrentCompute();
+        this.updateInterval = Math.max(1, abilityInfo.updateInterval());
+        this.updatePhase = abilityInfo.updatePhase();
+        this.permission = ("abilityslots.abilities." + abilityCategory.getName() + "." + this.name).toLowerCase();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        if (this.enabled == enabled) return;
+        this.enabled = enabled;
+        // Passives appear or disappear without any user event
+        if (isActivatedBy(ActivationMethod.PASSIVE)) {
+            IoC.get(AbilityUserService.class).markAllDirty();
+        }
     }
 
     @Override
@@ -82,7 +115,7 @@ public class AnnotationBasedAbilityInformation implements AbilityInformation {
         String prefix = this.category.getPrefix();
         builder.append(prefix);
         if (user != null && user.hasCooldown(this)) {
-            long cooldown = user.getCooldowns().get(this) - System.currentTimeMillis();
+            long cooldown = user.getCooldownEnd(this) - clock.getTime();
             return builder
                     .append(ChatColor.STRIKETHROUGH)
                     .append(this.getDisplayName())
@@ -98,12 +131,16 @@ public class AnnotationBasedAbilityInformation implements AbilityInformation {
     @Override
     @SneakyThrows
     public Ability createAbility() {
-        return abilityClass.getConstructor().newInstance();
+        Ability ability = abilityClass.getConstructor().newInstance();
+        ability.setInformation(this);
+        return ability;
     }
 
     @Override
     public boolean canDestroyAbility(AbilityInformation ability) {
-        return this.destroyAbilities.contains(ability);
+        int ordinal = ability.getOrdinal();
+        if (ordinal >= 0 && this.destroyOrdinals.get(ordinal)) return true;
+        return this.destroyUnindexed && this.destroyAbilities.contains(ability);
     }
 
     @Override
@@ -113,11 +150,21 @@ public class AnnotationBasedAbilityInformation implements AbilityInformation {
 
     @Override
     public boolean addDestroyAbility(AbilityInformation ability) {
+        int ordinal = ability.getOrdinal();
+        if (ordinal >= 0) {
+            this.destroyOrdinals.set(ordinal);
+        } else {
+            this.destroyUnindexed = true;
+        }
         return this.destroyAbilities.add(ability);
     }
 
     @Override
     public boolean removeDestroyAbility(AbilityInformation ability) {
+        int ordinal = ability.getOrdinal();
+        if (ordinal >= 0) {
+            this.destroyOrdinals.clear(ordinal);
+        }
         return this.destroyAbilities.remove(ability);
     }
 }
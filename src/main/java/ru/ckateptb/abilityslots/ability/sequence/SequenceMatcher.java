@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.ability.sequence;
+
+import lombok.Getter;
+import ru.ckateptb.abilityslots.ability.Ability;
+import ru.ckateptb.abilityslots.ability.enums.SequenceAction;
+import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
+
+import java.util.*;
+
+/**
+ * Matches every registered sequence against a stream of actions with one table lookup per action.
+ * <p>
+ * A sequence step may accept several input actions: {@link SequenceAction#equals(SequenceAction)} lets a
+ * {@link SequenceAction#LEFT_CLICK} step accept {@link SequenceAction#LEFT_CLICK_ENTITY} and
+ * {@link SequenceAction#LEFT_CLICK_BLOCK} input (the same for right clicks). Because of that, instead of a plain
+ * Aho–Corasick automaton the matcher determinizes the sequences lazily:
+ * a state is the sorted set of partially matched sequence positions, and every transition is computed once and then
+ * cached. A state also remembers which sequences were completed on the way in, which are its matches, together with
+ * their lengths so the caller can tell how far back the first action of each match was.
+ */
+public final class SequenceMatcher {
+    public static final int START = 0;
+    private static final int ACTIONS = SequenceAction.values().length;
+    // ACCEPTS[step][input], resolved once from SequenceAction#equals(SequenceAction)
+    private static final boolean[][] ACCEPTS = new boolean[ACTIONS][ACTIONS];
+
+    static {
+        for (SequenceAction step : SequenceAction.values()) {
+            for (SequenceAction input : SequenceAction.values()) {
+                ACCEPTS[step.ordinal()][input.ordinal()] = step.equals(input);
+            }
+        }
+    }
+    private final AbilityInformation[] abilities;
+    private final AbilityAction[][] patterns;
+    private final Map<Class<? extends Ability>, Integer> classes = new HashMap<>();
+    private final Map<State, Integer> index = new HashMap<>();
+    private final List<int[]> states = new ArrayList<>();
+    private final List<AbilityInformation[]> matches = new ArrayList<>();
+    private final List<int[]> matchLengths = new ArrayList<>();
+    private final int symbols;
+    private final int stride;
+    @Getter
+    private final int maxLength;
+    private int[][] transitions = new int[16][];
+
+    public SequenceMatcher(Map<AbilityInformation, List<AbilityAction>> sequences) {
+        List<AbilityInformation> abilities = new ArrayList<>();
+        List<AbilityAction[]> patterns = new ArrayList<>();
+        int maxLength = 0;
+        for (Map.Entry<AbilityInformation, List<AbilityAction>> entry : sequences.entrySet()) {
+            List<AbilityAction> actions = entry.getValue();
+            if (actions.isEmpty()) continue;
+            for (AbilityAction action : actions) {
+                classes.putIfAbsent(action.ability(), classes.size());
+            }
+            abilities.add(entry.getKey());
+            patterns.add(actions.toArray(new AbilityAction[0]));
+            maxLength = Math.max(maxLength, actions.size());
+        }
+        this.abilities = abilities.toArray(new AbilityInformation[0]);
+        this.patterns = patterns.toArray(new AbilityAction[0][]);
+        this.maxLength = maxLength;
+        this.stride = maxLength + 1;
+        this.symbols = classes.size() * ACTIONS;
+        intern(new int[0]);
+    }
+
+    public int next(int state, Class<? extends Ability> ability, SequenceAction action) {
+        Integer id = classes.get(ability);
+        if (id == null) return START;
+        int symbol = id * ACTIONS + action.ordinal();
+        int[] row = transitions[state];
+        int next = row[symbol];
+        if (next < 0) {
+            next = transition(state, ability, action);
+            row[symbol] = next;
+        }
+        return next;
+    }
+
+    public AbilityInformation[] getMatches(int state) {
+        return matches.get(state);
+    }
+
+    /**
+     * @return the number of actions of each sequence returned by {@link #getMatches(int)}, in the same order
+     */
+    public int[] getMatchLengths(int state) {
+        return matchLengths.get(state);
+    }
+
+    public int getStateCount() {
+        return states.size();
+    }
+
+    private int transition(int state, Class<? extends Ability> ability, SequenceAction action) {
+        int[] items = states.get(state);
+        int[] next = new int[items.length + patterns.length];
+        int size = 0;
+        int cursor = 0;
+        for (int pattern = 0; pattern < patterns.length; pattern++) {
+            AbilityAction[] actions = patterns[pattern];
+            if (matches(actions[0], ability, action)) {
+                next[size++] = pattern * stride + 1;
+            }
+            while (cursor < items.length && items[cursor] / stride == pattern) {
+                int position = items[cursor++] % stride;
+                if (position < actions.length && matches(actions[position], ability, action)) {
+                    next[size++] = pattern * stride + position + 1;
+                }
+            }
+        }
+        return intern(Arrays.copyOf(next, size));
+    }
+
+    private int intern(int[] items) {
+        State key = new State(items);
+        Integer existing = index.get(key);
+        if (existing != null) return existing;
+        int id = states.size();
+        states.add(items);
+        index.put(key, id);
+        List<AbilityInformation> completed = new ArrayList<>();
+        int[] lengths = new int[items.length];
+        for (int item : items) {
+            int pattern = item / stride;
+            int length = patterns[pattern].length;
+            if (item % stride == length) {
+                lengths[completed.size()] = length;
+                completed.add(abilities[pattern]);
+            }
+        }
+        matches.add(completed.toArray(new AbilityInformation[0]));
+        matchLengths.add(Arrays.copyOf(lengths, completed.size()));
+        if (id == transitions.length) {
+            transitions = Arrays.copyOf(transitions, id * 2);
+        }
+        int[] row = new int[symbols];
+        Arrays.fill(row, -1);
+        transitions[id] = row;
+        return id;
+    }
+
+    private boolean matches(AbilityAction expected, Class<? extends Ability> ability, SequenceAction action) {
+        return expected.ability() == ability && ACCEPTS[expected.action().ordinal()][action.ordinal()];
+    }
+
+    private record State(int[] items) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof State state && Arrays.equals(items, state.items);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(items);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package ru.ckateptb.abilityslots.board;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.bukkit.Bukkit;
@@ -27,7 +28,10 @@ import ru.ckateptb.abilityslots.ability.enums.ActivationMethod;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 import ru.ckateptb.abilityslots.service.AbilityService;
+import ru.ckateptb.abilityslots.service.ClockService;
+import ru.ckateptb.abilityslots.slot.AbilitySlotContainer;
 import ru.ckateptb.abilityslots.user.PlayerAbilityUser;
+import ru.ckateptb.tablecloth.ioc.IoC;
 
 import java.util.*;
 
@@ -35,15 +39,37 @@ import java.util.*;
 public class AbilityBoard {
     private final AbilitySlotsConfig config;
     private final AbilityService abilityService;
+    @Getter(AccessLevel.NONE)
+    private final ClockService clock = IoC.get(ClockService.class);
     private final ScoreboardManager scoreboardManager = Objects.requireNonNull(Bukkit.getScoreboardManager());
 
     private final PlayerAbilityUser user;
     private final Player player;
     private final Scoreboard scoreboard;
     private final Objective objective;
-    private final Set<String> updatedScores = new HashSet<>();
     @Setter
     private boolean enabled;
+    // Lines currently shown on the scoreboard, a line at index i has the score -(i + 1)
+    @Getter(AccessLevel.NONE)
+    private String[] lines = new String[16];
+    @Getter(AccessLevel.NONE)
+    private int lineCount = 0;
+    @Getter(AccessLevel.NONE)
+    private String[] nextLines = new String[16];
+    @Getter(AccessLevel.NONE)
+    private int nextLineCount = 0;
+    // State the current lines were rendered from
+    @Getter(AccessLevel.NONE)
+    private final AbilityInformation[] renderedSlots = new AbilityInformation[9];
+    @Getter(AccessLevel.NONE)
+    private int renderedHeldSlot = -1;
+    @Getter(AccessLevel.NONE)
+    private long renderedCooldownVersion = -1;
+    @Getter(AccessLevel.NONE)
+    private int renderedGeneration = -1;
+    // When a displayed cooldown countdown changes next
+    @Getter(AccessLevel.NONE)
+    private long refreshAt = Long.MAX_VALUE;
 
     public AbilityBoard(PlayerAbilityUser user, AbilitySlotsConfig config, AbilityService abilityService) {
         this.config = config;
@@ -66,24 +92,54 @@ public class AbilityBoard {
         if (player.getScoreboard() != scoreboard) {
             player.setScoreboard(scoreboard);
         }
-        updatedScores.clear();
-
-        updateSlots();
-        updateSequences();
+        if (!isRenderRequired()) return;
+        long time = clock.getTime();
+        this.refreshAt = Long.MAX_VALUE;
+        this.nextLineCount = 0;
+
+        renderSlots(time);
+        renderSequences(time);
+        apply();
+    }
 
-        // Clear out any scores that aren't needed.
-        for (String entry : scoreboard.getEntries()) {
-            if (updatedScores.contains(entry)) continue;
-            scoreboard.resetScores(entry);
+    /**
+     * Check whether anything shown on the board may have changed since the last render.
+     */
+    private boolean isRenderRequired() {
+        boolean changed = clock.getTime() >= refreshAt;
+        int heldSlot = user.getHeldItemSlot();
+        if (heldSlot != renderedHeldSlot) {
+            renderedHeldSlot = heldSlot;
+            changed = true;
+        }
+        AbilitySlotContainer slotContainer = user.getSlotContainer();
+        for (int slotIndex = 1; slotIndex <= 9; ++slotIndex) {
+            AbilityInformation ability = slotContainer.getAbility(slotIndex);
+            if (renderedSlots[slotIndex - 1] != ability) {
+                renderedSlots[slotIndex - 1] = ability;
+                changed = true;
+            }
         }
+        long cooldownVersion = user.getCooldownVersion();
+        if (cooldownVersion != renderedCooldownVersion) {
+            renderedCooldownVersion = cooldownVersion;
+            changed = true;
+        }
+        // Display names may change on reload
+        int generation = abilityService.getGeneration();
+        if (generation != renderedGeneration) {
+            renderedGeneration = generation;
+            changed = true;
+        }
+        return changed;
     }
 
-    private void updateSlots() {
-        int currentSlot = user.getHeldItemSlot();
+    private void renderSlots(long time) {
+        int currentSlot = renderedHeldSlot;
 
         for (int slotIndex = 1; slotIndex <= 9; ++slotIndex) {
             StringBuilder sb = new StringBuilder();
-            AbilityInformation ability = user.getSlotContainer().getAbility(slotIndex);
+            AbilityInformation ability = renderedSlots[slotIndex - 1];
 
             sb.append(getUniquePrefix(slotIndex));
 
@@ -95,42 +151,62 @@ public class AbilityBoard {
                 sb.append(config.getBoardEmptySlot());
             } else {
                 sb.append(ability.getFormattedNameForUser(user));
+                scheduleRefresh(ability, time);
             }
 
-            updatedScores.add(sb.toString());
-
-            Score score = objective.getScore(sb.toString());
-            // Only set the new score if it changes.
-            if (score.getScore() != -slotIndex) {
-                score.setScore(-slotIndex);
-            }
+            addLine(sb.toString());
         }
     }
 
-    private void updateSequences() {
-        int slotIndex = 10;
-        List<String> updates = new ArrayList<>();
-        for (AbilityInformation ability : abilityService.getAbilities()) {
+    private void renderSequences(long time) {
+        boolean header = false;
+        for (AbilityInformation ability : user.getActiveCooldowns()) {
             if (ability.isActivatedBy(ActivationMethod.SEQUENCE)) {
-                if (user.hasCooldown(ability)) {
-                    if (updates.isEmpty()) {
-                        updates.add(ChatColor.BOLD + "Sequences");
-                    }
-                    updates.add(getUniquePrefix(slotIndex) + ability.getFormattedNameForUser(user));
+                if (!header) {
+                    addLine(ChatColor.BOLD + "Sequences");
+                    header = true;
                 }
+                addLine(getUniquePrefix(nextLineCount + 1) + ability.getFormattedNameForUser(user));
+                scheduleRefresh(ability, time);
             }
         }
+    }
 
-        for (String update : updates) {
-            Score score = objective.getScore(update);
+    // The countdown is shown in whole seconds, so the text changes when the remaining time crosses a second
+    private void scheduleRefresh(AbilityInformation ability, long time) {
+        long end = user.getCooldownEnd(ability);
+        if (end <= time) return;
+        long remaining = end - time;
+        refreshAt = Math.min(refreshAt, time + remaining % 1000 + 1);
+    }
 
-            if (score.getScore() != -slotIndex) {
-                score.setScore(-slotIndex);
-            }
+    private void addLine(String line) {
+        if (nextLineCount == nextLines.length) {
+            nextLines = Arrays.copyOf(nextLines, nextLineCount << 1);
+        }
+        nextLines[nextLineCount++] = line;
+    }
 
-            updatedScores.add(update);
-            ++slotIndex;
+    // Only touch the scores whose text changed
+    private void apply() {
+        if (lines.length < nextLineCount) {
+            lines = Arrays.copyOf(lines, nextLines.length);
+        }
+        for (int i = 0; i < nextLineCount; i++) {
+            String line = nextLines[i];
+            nextLines[i] = null;
+            if (line.equals(lines[i])) continue;
+            if (lines[i] != null) {
+                scoreboard.resetScores(lines[i]);
+            }
+            objective.getScore(line).setScore(-(i + 1));
+            lines[i] = line;
+        }
+        for (int i = nextLineCount; i < lineCount; i++) {
+            scoreboard.resetScores(lines[i]);
+            lines[i] = null;
         }
+        lineCount = nextLineCount;
     }
 
     // Make sure each entry has its own unique string.
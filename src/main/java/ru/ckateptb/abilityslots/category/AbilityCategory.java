@@ -42,6 +42,13 @@ public interface AbilityCategory extends Listener {
 
     boolean isEnabled();
 
+    /**
+     * @return permission node required to use abilities of this category
+     */
+    default String getPermission() {
+        return ("abilityslots.abilities." + getName()).toLowerCase();
+    }
+
     void setEnabled(boolean enabled);
 
     Collection<AbilityInformation> getAbilities();
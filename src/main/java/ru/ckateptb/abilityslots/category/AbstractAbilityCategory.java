@@ -17,9 +17,12 @@
 
 package ru.ckateptb.abilityslots.category;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
+import ru.ckateptb.abilityslots.service.AbilityUserService;
+import ru.ckateptb.tablecloth.ioc.IoC;
 
 import java.util.Collection;
 import java.util.Collections;
@@ -31,12 +34,32 @@ import java.util.Map;
 public abstract class AbstractAbilityCategory implements AbilityCategory {
     private final Map<String, AbilityInformation> abilities = new HashMap<>();
     private boolean enabled = true;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private String permission;
 
     @Override
     public void registerAbility(AbilityInformation ability) {
         abilities.put(ability.getName(), ability);
     }
 
+    @Override
+    public void setEnabled(boolean enabled) {
+        if (this.enabled == enabled) return;
+        this.enabled = enabled;
+        // Passives appear or disappear without any user event
+        IoC.get(AbilityUserService.class).markAllDirty();
+    }
+
+    @Override
+    public String getPermission() {
+        // Resolved lazily, the name is provided by the subclass
+        if (permission == null) {
+            permission = AbilityCategory.super.getPermission();
+        }
+        return permission;
+    }
+
     @Override
     public AbilityInformation getAbility(String name) {
         return abilities.get(name);
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package ru.ckateptb.abilityslots.collision;
+
+import org.bukkit.World;
+import ru.ckateptb.tablecloth.collision.Collider;
+import ru.ckateptb.tablecloth.math.ImmutableVector;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Sweep and prune over the bounding boxes of collision participants.
+ * <p>
+ * Participants are added in a stable order every tick (the order of the instance registry), so the sort order of the
+ * previous tick is almost sorted and the insertion sort costs nearly O(n). All arrays are reused between ticks.
+ * After {@link #sweep(PairFilter)} every participant has an ascending list of participants whose boxes overlap with it.
+ */
+public final class CollisionBroadPhase {
+    private World[] worlds = new World[64];
+    private double[] minX = new double[64];
+    private double[] minY = new double[64];
+    private double[] minZ = new double[64];
+    private double[] maxX = new double[64];
+    private double[] maxY = new double[64];
+    private double[] maxZ = new double[64];
+    private int[] order = new int[64];
+    private int[] cursor = new int[64];
+    private int orderSize = 0;
+    private int size = 0;
+    private int[] pairs = new int[128];
+    private int pairCount = 0;
+    private int[] neighborStart = new int[65];
+    private int[] neighbors = new int[128];
+
+    public void clear() {
+        Arrays.fill(worlds, 0, size, null);
+        size = 0;
+        pairCount = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return index of the participant, or -1 if it has no colliders
+     */
+    public int add(World world, Collection<Collider> colliders, double margin) {
+        double lowX = Double.POSITIVE_INFINITY, lowY = Double.POSITIVE_INFINITY, lowZ = Double.POSITIVE_INFINITY;
+        double highX = Double.NEGATIVE_INFINITY, highY = Double.NEGATIVE_INFINITY, highZ = Double.NEGATIVE_INFINITY;
+        boolean empty = true;
+        for (Collider collider : colliders) {
+            if (collider == null) continue;
+            ImmutableVector position = collider.getPosition();
+            ImmutableVector halfExtents = collider.getHalfExtents();
+            double extentX = Math.abs(halfExtents.getX());
+            double extentY = Math.abs(halfExtents.getY());
+            double extentZ = Math.abs(halfExtents.getZ());
+            lowX = Math.min(lowX, position.getX() - extentX);
+            lowY = Math.min(lowY, position.getY() - extentY);
+            lowZ = Math.min(lowZ, position.getZ() - extentZ);
+            highX = Math.max(highX, position.getX() + extentX);
+            highY = Math.max(highY, position.getY() + extentY);
+            highZ = Math.max(highZ, position.getZ() + extentZ);
+            empty = false;
+        }
+        if (empty) return -1;
+        ensureCapacity(size + 1);
+        int index = size++;
+        worlds[index] = world;
+        minX[index] = lowX - margin;
+        minY[index] = lowY - margin;
+        minZ[index] = lowZ - margin;
+        maxX[index] = highX + margin;
+        maxY[index] = highY + margin;
+        maxZ[index] = highZ + margin;
+        return index;
+    }
+
+    /**
+     * Find all overlapping pairs accepted by the filter.
+     *
+     * @return the number of accepted pairs
+     */
+    public int sweep(PairFilter filter) {
+        prepareOrder();
+        pairCount = 0;
+        for (int a = 0; a < size; a++) {
+            int first = order[a];
+            for (int b = a + 1; b < size; b++) {
+                int second = order[b];
+                if (minX[second] > maxX[first]) break;
+                if (worlds[first] != worlds[second]) continue;
+                if (minY[second] > maxY[first] || minY[first] > maxY[second]) continue;
+                if (minZ[second] > maxZ[first] || minZ[first] > maxZ[second]) continue;
+                int low = Math.min(first, second);
+                int high = Math.max(first, second);
+                if (filter != null && !filter.test(low, high)) continue;
+                if ((pairCount << 1) + 2 > pairs.length) {
+                    pairs = Arrays.copyOf(pairs, pairs.length << 1);
+                }
+                pairs[pairCount << 1] = low;
+                pairs[(pairCount << 1) + 1] = high;
+                pairCount++;
+            }
+        }
+        buildNeighbors();
+        return pairCount;
+    }
+
+    public int getNeighborStart(int index) {
+        return neighborStart[index];
+    }
+
+    public int getNeighborEnd(int index) {
+        return neighborStart[index + 1];
+    }
+
+    public int getNeighbor(int position) {
+        return neighbors[position];
+    }
+
+    private void prepareOrder() {
+        // Keep the previous permutation for the indices that still exist and append the new ones
+        int kept = 0;
+        for (int i = 0; i < orderSize; i++) {
+            if (order[i] < size) {
+                order[kept++] = order[i];
+            }
+        }
+        for (int i = orderSize; i < size; i++) {
+            order[kept++] = i;
+        }
+        orderSize = size;
+        for (int i = 1; i < size; i++) {
+            int current = order[i];
+            double key = minX[current];
+            int j = i - 1;
+            while (j >= 0 && minX[order[j]] > key) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = current;
+        }
+    }
+
+    private void buildNeighbors() {
+        Arrays.fill(neighborStart, 0, size + 1, 0);
+        for (int i = 0; i < pairCount; i++) {
+            neighborStart[pairs[i << 1] + 1]++;
+            neighborStart[pairs[(i << 1) + 1] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            neighborStart[i + 1] += neighborStart[i];
+        }
+        int total = neighborStart[size];
+        if (neighbors.length < total) {
+            neighbors = new int[Math.max(total, neighbors.length << 1)];
+        }
+        // Pairs are emitted in sweep order, fill every list and then sort it to keep the original iteration order
+        Arrays.fill(cursor, 0, size, 0);
+        for (int i = 0; i < pairCount; i++) {
+            int first = pairs[i << 1];
+            int second = pairs[(i << 1) + 1];
+            neighbors[neighborStart[first] + cursor[first]++] = second;
+            neighbors[neighborStart[second] + cursor[second]++] = first;
+        }
+        for (int i = 0; i < size; i++) {
+            int from = neighborStart[i];
+            int to = neighborStart[i + 1];
+            if (to - from > 1) {
+                Arrays.sort(neighbors, from, to);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= worlds.length) return;
+        int length = Math.max(capacity, worlds.length << 1);
+        worlds = Arrays.copyOf(worlds, length);
+        minX = Arrays.copyOf(minX, length);
+        minY = Arrays.copyOf(minY, length);
+        minZ = Arrays.copyOf(minZ, length);
+        maxX = Arrays.copyOf(maxX, length);
+        maxY = Arrays.copyOf(maxY, length);
+        maxZ = Arrays.copyOf(maxZ, length);
+        order = Arrays.copyOf(order, length);
+        cursor = new int[length];
+        neighborStart = Arrays.copyOf(neighborStart, length + 1);
+    }
+
+    @FunctionalInterface
+    public interface PairFilter {
+        boolean test(int first, int second);
+    }
+}
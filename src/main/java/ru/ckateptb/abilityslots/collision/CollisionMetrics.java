@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package ru.ckateptb.abilityslots.collision;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Counters of the ability collision tick.
+ * <p>
+ * Values prefixed with {@code last} describe the last finished tick, the others are totals since the last
+ * {@link #reset()}. Per type counters are indexed by {@link AbilityInformation#getOrdinal()} and dropped on reload.
+ */
+public final class CollisionMetrics {
+    @Getter
+    private long ticks;
+    @Getter
+    private int lastParticipants;
+    @Getter
+    private long lastCandidatePairs;
+    @Getter
+    private long lastTotalPairs;
+    @Getter
+    private long lastTests;
+    @Getter
+    private long lastHits;
+    @Getter
+    private long lastCallbacks;
+    @Getter
+    private long participants;
+    @Getter
+    private long candidatePairs;
+    @Getter
+    private long totalPairs;
+    @Getter
+    private long tests;
+    @Getter
+    private long hits;
+    @Getter
+    private long callbacks;
+    private final long[] lastPhaseNanos = new long[Phase.values().length];
+    private final Histogram[] histograms = new Histogram[Phase.values().length];
+    private TypeMetrics[] types = new TypeMetrics[0];
+    private int generation = -1;
+    private int tickParticipants;
+    private long tickCandidatePairs;
+    private long tickTotalPairs;
+    private long tickTests;
+    private long tickHits;
+    private long tickCallbacks;
+    private final long[] tickPhaseNanos = new long[Phase.values().length];
+
+    public CollisionMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * @param generation {@link ru.ckateptb.abilityslots.service.AbilityService#getGeneration()}, ordinals are only
+     *                   valid within one generation
+     */
+    public void startTick(int generation) {
+        if (this.generation != generation) {
+            this.generation = generation;
+            this.types = new TypeMetrics[0];
+        }
+        tickParticipants = 0;
+        tickCandidatePairs = 0;
+        tickTotalPairs = 0;
+        tickTests = 0;
+        tickHits = 0;
+        tickCallbacks = 0;
+        Arrays.fill(tickPhaseNanos, 0);
+    }
+
+    public void finishTick() {
+        ticks++;
+        lastParticipants = tickParticipants;
+        lastCandidatePairs = tickCandidatePairs;
+        lastTotalPairs = tickTotalPairs;
+        lastTests = tickTests;
+        lastHits = tickHits;
+        lastCallbacks = tickCallbacks;
+        long total = 0;
+        for (Phase phase : Phase.values()) {
+            long nanos = tickPhaseNanos[phase.ordinal()];
+            if (phase != Phase.TOTAL) {
+                total += nanos;
+                lastPhaseNanos[phase.ordinal()] = nanos;
+                histograms[phase.ordinal()].record(nanos);
+            }
+        }
+        lastPhaseNanos[Phase.TOTAL.ordinal()] = total;
+        histograms[Phase.TOTAL.ordinal()].record(total);
+        for (TypeMetrics type : types) {
+            if (type != null) {
+                type.finishTick();
+            }
+        }
+    }
+
+    public void recordPhase(Phase phase, long nanos) {
+        tickPhaseNanos[phase.ordinal()] += nanos;
+    }
+
+    public void recordParticipant(AbilityInformation information, int colliders) {
+        tickParticipants++;
+        participants++;
+        TypeMetrics type = getType(information);
+        if (type == null) return;
+        type.tickParticipants++;
+        type.tickColliders += colliders;
+        type.participants++;
+        type.colliders += colliders;
+    }
+
+    public void recordPairs(long candidatePairs, long totalPairs) {
+        tickCandidatePairs += candidatePairs;
+        tickTotalPairs += totalPairs;
+        this.candidatePairs += candidatePairs;
+        this.totalPairs += totalPairs;
+    }
+
+    public void recordTests(AbilityInformation first, AbilityInformation second, int tests) {
+        if (tests == 0) return;
+        tickTests += tests;
+        this.tests += tests;
+        TypeMetrics firstType = getType(first);
+        if (firstType != null) {
+            firstType.tests += tests;
+        }
+        TypeMetrics secondType = getType(second);
+        if (secondType != null && secondType != firstType) {
+            secondType.tests += tests;
+        }
+    }
+
+    public void recordHit(AbilityInformation destroyer, AbilityInformation target) {
+        tickHits++;
+        hits++;
+        TypeMetrics destroyerType = getType(destroyer);
+        if (destroyerType != null) {
+            destroyerType.hits++;
+        }
+        TypeMetrics targetType = getType(target);
+        if (targetType != null && targetType != destroyerType) {
+            targetType.hits++;
+        }
+    }
+
+    public void recordCallback(AbilityInformation receiver) {
+        tickCallbacks++;
+        callbacks++;
+        TypeMetrics type = getType(receiver);
+        if (type != null) {
+            type.callbacks++;
+        }
+    }
+
+    public long getLastPhaseNanos(Phase phase) {
+        return lastPhaseNanos[phase.ordinal()];
+    }
+
+    public Histogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    public TypeMetrics getTypeMetrics(AbilityInformation information) {
+        int ordinal = information.getOrdinal();
+        if (ordinal < 0 || ordinal >= types.length) return null;
+        return types[ordinal];
+    }
+
+    public Collection<TypeMetrics> getTypeMetrics() {
+        List<TypeMetrics> result = new ArrayList<>();
+        for (TypeMetrics type : types) {
+            if (type != null) {
+                result.add(type);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public void reset() {
+        ticks = 0;
+        participants = 0;
+        candidatePairs = 0;
+        totalPairs = 0;
+        tests = 0;
+        hits = 0;
+        callbacks = 0;
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+        types = new TypeMetrics[0];
+    }
+
+    private TypeMetrics getType(AbilityInformation information) {
+        int ordinal = information.getOrdinal();
+        if (ordinal < 0) return null;
+        if (ordinal >= types.length) {
+            types = Arrays.copyOf(types, Math.max(ordinal + 1, types.length << 1));
+        }
+        TypeMetrics type = types[ordinal];
+        if (type == null) {
+            type = new TypeMetrics(information);
+            types[ordinal] = type;
+        }
+        return type;
+    }
+
+    public enum Phase {
+        /**
+         * Selecting participants and the ability types that can interact
+         */
+        COLLECT,
+        BROAD,
+        NARROW,
+        /**
+         * Serial destroyCollider callbacks and instance removal
+         */
+        RESOLVE,
+        TOTAL
+    }
+
+    @Getter
+    public static final class TypeMetrics {
+        private final AbilityInformation information;
+        private int lastParticipants;
+        private long lastColliders;
+        private long participants;
+        private long colliders;
+        private long tests;
+        private long hits;
+        private long callbacks;
+        @Getter(AccessLevel.NONE)
+        private int tickParticipants;
+        @Getter(AccessLevel.NONE)
+        private long tickColliders;
+
+        private TypeMetrics(AbilityInformation information) {
+            this.information = information;
+        }
+
+        private void finishTick() {
+            lastParticipants = tickParticipants;
+            lastColliders = tickColliders;
+            tickParticipants = 0;
+            tickColliders = 0;
+        }
+    }
+
+    /**
+     * Histogram of durations with power of two microsecond buckets, the last bucket holds everything above ~1s.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 22;
+        private final long[] buckets = new long[BUCKETS];
+        @Getter
+        private long count;
+        @Getter
+        private long sumNanos;
+        @Getter
+        private long maxNanos;
+
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket]++;
+            count++;
+            sumNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        /**
+         * @param percentile from 0 to 1
+         * @return upper bound of the bucket containing the percentile
+         */
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return i == BUCKETS - 1 ? maxNanos : Math.min(maxNanos, (1L << i) * 1000);
+                }
+            }
+            return maxNanos;
+        }
+
+        public void reset() {
+            Arrays.fill(buckets, 0);
+            count = 0;
+            sumNanos = 0;
+            maxNanos = 0;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package ru.ckateptb.abilityslots.collision;
+
+import ru.ckateptb.tablecloth.collision.Collider;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the first intersecting collider pair of every requested candidate pair, in parallel when possible.
+ * <p>
+ * Colliders are snapshotted on the main thread, workers only call {@link Collider#intersects(Collider)}.
+ * Results are indexed by the neighbor position of {@link CollisionBroadPhase}, the caller resolves them serially in
+ * its own order, so the outcome does not depend on how the work was split between threads.
+ */
+public final class CollisionNarrowPhase {
+    private static final Collider[] EMPTY = new Collider[0];
+    private static final int THRESHOLD = 32;
+    private Collider[][] colliders = new Collider[64][];
+    private int[] firsts = new int[128];
+    private int[] seconds = new int[128];
+    private boolean[] requested = new boolean[128];
+    private Collider[] firstHits = new Collider[128];
+    private Collider[] secondHits = new Collider[128];
+    private int[] testCounts = new int[128];
+    private int[] tasks = new int[128];
+    private int taskCount = 0;
+    private int participants = 0;
+    private int positions = 0;
+
+    public void prepare(int participants, int positions) {
+        Arrays.fill(this.colliders, 0, this.participants, null);
+        Arrays.fill(this.requested, 0, this.positions, false);
+        Arrays.fill(this.firstHits, 0, this.positions, null);
+        Arrays.fill(this.secondHits, 0, this.positions, null);
+        if (colliders.length < participants) {
+            colliders = new Collider[Math.max(participants, colliders.length << 1)][];
+        }
+        if (requested.length < positions) {
+            int length = Math.max(positions, requested.length << 1);
+            firsts = new int[length];
+            seconds = new int[length];
+            requested = new boolean[length];
+            firstHits = new Collider[length];
+            secondHits = new Collider[length];
+            testCounts = new int[length];
+            tasks = new int[length];
+        }
+        this.participants = participants;
+        this.positions = positions;
+        this.taskCount = 0;
+    }
+
+    public void snapshot(int index, Collection<Collider> colliders) {
+        this.colliders[index] = colliders.isEmpty() ? EMPTY : colliders.toArray(EMPTY);
+    }
+
+    public void request(int position, int first, int second) {
+        firsts[position] = first;
+        seconds[position] = second;
+        requested[position] = true;
+        tasks[taskCount++] = position;
+    }
+
+    /**
+     * @param pool the workers, null to test on the calling thread
+     */
+    public void detect(ForkJoinPool pool) {
+        if (taskCount == 0) return;
+        if (pool == null || taskCount <= THRESHOLD) {
+            detect(0, taskCount);
+        } else {
+            pool.invoke(new DetectTask(0, taskCount));
+        }
+    }
+
+    public boolean isRequested(int position) {
+        return requested[position];
+    }
+
+    /**
+     * @return collider of the first participant, or null if the pair does not collide
+     */
+    public Collider getFirstHit(int position) {
+        return firstHits[position];
+    }
+
+    public Collider getSecondHit(int position) {
+        return secondHits[position];
+    }
+
+    /**
+     * @return the number of intersection tests performed for the pair
+     */
+    public int getTestCount(int position) {
+        return testCounts[position];
+    }
+
+    private void detect(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int position = tasks[i];
+            int tests = 0;
+            // Same iteration order as the serial check, so the same pair is reported first
+            search:
+            for (Collider first : colliders[firsts[position]]) {
+                if (first == null) continue;
+                for (Collider second : colliders[seconds[position]]) {
+                    if (second == null) continue;
+                    tests++;
+                    if (first.intersects(second)) {
+                        firstHits[position] = first;
+                        secondHits[position] = second;
+                        break search;
+                    }
+                }
+            }
+            testCounts[position] = tests;
+        }
+    }
+
+    private class DetectTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        private DetectTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                detect(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DetectTask(from, middle), new DetectTask(middle, to));
+        }
+    }
+}
@@ -31,8 +31,10 @@ import ru.ckateptb.abilityslots.AbilitySlots;
 import ru.ckateptb.abilityslots.ability.enums.ActivationMethod;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
 import ru.ckateptb.abilityslots.category.AbilityCategory;
+import ru.ckateptb.abilityslots.collision.CollisionMetrics;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 import ru.ckateptb.abilityslots.service.AbilityCategoryService;
+import ru.ckateptb.abilityslots.service.AbilityCollisionService;
 import ru.ckateptb.abilityslots.service.AbilityService;
 import ru.ckateptb.abilityslots.service.AbilityUserService;
 import ru.ckateptb.abilityslots.user.PlayerAbilityUser;
@@ -41,6 +43,7 @@ import ru.ckateptb.tablecloth.ioc.annotation.Component;
 import ru.ckateptb.tablecloth.minedown.MineDown;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,13 +54,15 @@ public class AbilitySlotsCommand {
     private final AbilityService abilityService;
     private final AbilityCategoryService categoryService;
     private final AbilityUserService abilityUserService;
+    private final AbilityCollisionService collisionService;
     private final AbilitySlotsConfig config;
     private final AbilitySlots plugin = AbilitySlots.getInstance();
 
-    public AbilitySlotsCommand(AbilityService abilityService, AbilityCategoryService categoryService, AbilityUserService abilityUserService, AbilitySlotsConfig config) {
+    public AbilitySlotsCommand(AbilityService abilityService, AbilityCategoryService categoryService, AbilityUserService abilityUserService, AbilityCollisionService collisionService, AbilitySlotsConfig config) {
         this.abilityService = abilityService;
         this.categoryService = categoryService;
         this.abilityUserService = abilityUserService;
+        this.collisionService = collisionService;
         this.config = config;
         new CommandAPICommand("abilityslots")
                 .withAliases("abilityslot", "abilities", "ability", "as")
@@ -158,6 +163,16 @@ public class AbilitySlotsCommand {
                                                 .executesPlayer(this::executePresetList)
                                 )
                 )
+                .withSubcommand(
+                        new CommandAPICommand("collision")
+                                .withPermission("abilityslots.command.collision")
+                                .executes(this::executeCollision)
+                                .withSubcommand(
+                                        new CommandAPICommand("reset")
+                                                .withPermission("abilityslots.command.collision")
+                                                .executes(this::executeCollisionReset)
+                                )
+                )
                 .withSubcommand(
                         new CommandAPICommand("reload")
                                 .withPermission("abilityslots.command.reload")
@@ -293,6 +308,59 @@ public class AbilitySlotsCommand {
         sender.sendMessage(config.getCommandReloadSuccessMessage());
     }
 
+    public void executeCollision(CommandSender sender, Object[] args) {
+        CollisionMetrics metrics = collisionService.getMetrics();
+        StringBuilder builder = new StringBuilder()
+                .append(config.getCommandCollisionTicksMessage()).append(metrics.getTicks()).append("\n")
+                .append(config.getCommandCollisionLastTickMessage())
+                .append(formatCounters(metrics.getLastParticipants(), metrics.getLastCandidatePairs(), metrics.getLastTotalPairs(),
+                        metrics.getLastTests(), metrics.getLastHits(), metrics.getLastCallbacks())).append("\n")
+                .append(config.getCommandCollisionTotalMessage())
+                .append(formatCounters(metrics.getParticipants(), metrics.getCandidatePairs(), metrics.getTotalPairs(),
+                        metrics.getTests(), metrics.getHits(), metrics.getCallbacks())).append("\n");
+        for (CollisionMetrics.Phase phase : CollisionMetrics.Phase.values()) {
+            CollisionMetrics.Histogram histogram = metrics.getHistogram(phase);
+            builder.append(config.getCommandCollisionPhaseMessage()
+                    .replace("{phase}", phase.name().toLowerCase())
+                    .replace("{last}", formatNanos(metrics.getLastPhaseNanos(phase)))
+                    .replace("{mean}", formatNanos(histogram.getMeanNanos()))
+                    .replace("{p50}", formatNanos(histogram.getPercentileNanos(0.5)))
+                    .replace("{p99}", formatNanos(histogram.getPercentileNanos(0.99)))
+                    .replace("{max}", formatNanos(histogram.getMaxNanos()))).append("\n");
+        }
+        builder.append(config.getCommandCollisionTopAbilitiesMessage());
+        metrics.getTypeMetrics().stream()
+                .sorted(Comparator.comparingLong(CollisionMetrics.TypeMetrics::getTests).reversed())
+                .limit(10)
+                .forEach(type -> builder.append("\n").append(config.getCommandCollisionAbilityMessage()
+                        .replace("{ability}", type.getInformation().getName())
+                        .replace("{instances}", String.valueOf(type.getLastParticipants()))
+                        .replace("{colliders}", String.valueOf(type.getLastColliders()))
+                        .replace("{tests}", String.valueOf(type.getTests()))
+                        .replace("{hits}", String.valueOf(type.getHits()))
+                        .replace("{callbacks}", String.valueOf(type.getCallbacks()))));
+        sender.sendMessage(builder.toString());
+    }
+
+    public void executeCollisionReset(CommandSender sender, Object[] args) {
+        collisionService.getMetrics().reset();
+        executeCollision(sender, args);
+    }
+
+    private String formatCounters(long participants, long candidatePairs, long totalPairs, long tests, long hits, long callbacks) {
+        return config.getCommandCollisionCountersMessage()
+                .replace("{participants}", String.valueOf(participants))
+                .replace("{candidatePairs}", String.valueOf(candidatePairs))
+                .replace("{totalPairs}", String.valueOf(totalPairs))
+                .replace("{tests}", String.valueOf(tests))
+                .replace("{hits}", String.valueOf(hits))
+                .replace("{callbacks}", String.valueOf(callbacks));
+    }
+
+    private String formatNanos(long nanos) {
+        return String.format("%.3fms", nanos / 1_000_000D);
+    }
+
     public void executeHelp(CommandSender sender, Object[] args) {
         PluginDescriptionFile description = plugin.getDescription();
         String help = ChatColor.GOLD +
@@ -343,6 +411,11 @@ public class AbilitySlotsCommand {
                 ChatColor.GRAY +
                 config.getCommandPresetBindDescription() + ")\n" +
                 ChatColor.GRAY +
+                "[/abilityslots collision \\[reset\\]](suggest_command=/abilityslots collision show_text=" +
+                ChatColor.RESET +
+                ChatColor.GRAY +
+                config.getCommandCollisionDescription() + ")\n" +
+                ChatColor.GRAY +
                 "[/abilityslots reload](suggest_command=/abilityslots reload show_text=" +
                 ChatColor.RESET +
                 ChatColor.GRAY +
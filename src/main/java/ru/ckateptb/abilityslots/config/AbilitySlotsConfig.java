@@ -62,8 +62,40 @@ public class AbilitySlotsConfig extends YamlConfig {
     @ConfigField(name = "global.maxPresetsPerPlayer", comment = "The maximum number of presets a player can create")
     private int maxPresetsPerPlayer = 10;
 
-    @ConfigField(name = "global.protection.cacheDuration", comment = "For optimization, we use cached data about whether the user can use abilities in the specified location. Specify how long (in millies) the cached data stays up to date. The higher the value, the lower the load and the accuracy.")
-    private long protectionCacheDuration = 30000;
+    @ConfigField(name = "global.sequence.timeout", comment = "The time (in ticks) after which a sequence action expires. A sequence is only activated if all of its actions were performed within this time. Set 0 to disable")
+    private int sequenceTimeout = 60;
+
+    @ConfigField(name = "global.clock.mode", comment = "Available types: REAL (wall clock time sampled once per tick), SERVER_TICK (time advances by 50ms per server tick, so cooldowns and durations slow down together with the server)")
+    private String clockMode = ClockMode.REAL.name();
+
+    @ConfigField(name = "global.parallelism", comment = "The number of worker threads shared by the ability compute phase and the collision tests. Use 0 for all available processors except one, 1 to run everything on the main thread")
+    private int parallelism = 0;
+
+    @ConfigField(name = "global.update.budget", comment = "The maximum time (in millies) that can be spent on updating ability instances per tick. Instances that did not fit into the budget are carried over to the next tick in round-robin order. Set 0 to disable the limit")
+    private long updateBudget = 25;
+    @ConfigField(name = "global.update.parallelCompute", comment = "Compute abilities that declare a thread-safe compute phase on the worker threads, see global.parallelism")
+    private boolean updateParallelCompute = true;
+
+    @ConfigField(name = "global.passives.sweepPeriod", comment = "Passive abilities are re-checked when the user changes world, gamemode, permissions or a passive cooldown expires. In addition, every user is re-checked once per this many ticks, spread evenly across ticks. Set 0 to disable")
+    private int passiveSweepPeriod = 200;
+    @ConfigField(name = "global.permissions.refreshPeriod", comment = "Permissions of players are cached and refreshed when the player changes world, the permission plugin resends commands or LuckPerms recalculates them. Other permission plugins do not always resend commands, so the cache of every player is also dropped once per this many ticks, spread evenly across ticks. This is the longest time a revoked permission stays in effect. Set 0 to disable")
+    private int permissionRefreshPeriod = 200;
+
+    @ConfigField(name = "global.collision.broadPhase", comment = "Test collisions only between abilities whose bounding boxes overlap")
+    private boolean collisionBroadPhase = true;
+    @ConfigField(name = "global.collision.broadPhaseMargin", comment = "How much (in blocks) the ability bounding boxes are expanded before testing for overlap")
+    private double collisionBroadPhaseMargin = 0.5;
+    @ConfigField(name = "global.collision.parallelNarrowPhase", comment = "Test colliders of ability pairs that may collide on the worker threads, see global.parallelism")
+    private boolean collisionParallelNarrowPhase = true;
+
+    @ConfigField(name = "global.protection.cacheDuration", comment = "For optimization, we use cached data about whether the user can use abilities in the specified location. Specify how long (in millies) the cached data stays up to date. Claim and region changes reported by the protection plugins (GriefPrevention, Towny, LWC) drop the affected data immediately.")
+    private long protectionCacheDuration = 300000;
+    @ConfigField(name = "global.protection.unreportedCacheDuration", comment = "Not every change of some protection plugins (WorldGuard) is reported. Specify how long (in millies) the cached data that depends on them stays up to date. The higher the value, the lower the load and the accuracy.")
+    private long protectionUnreportedCacheDuration = 30000;
+    @ConfigField(name = "global.protection.prefetchRadius", comment = "Protection around players holding an ability is decided in advance, the thread-safe protection plugins (WorldGuard) are queried asynchronously. Specify the radius (in blocks) around the player. Set 0 to disable")
+    private int protectionPrefetchRadius = 32;
+    @ConfigField(name = "global.protection.entityCacheSize", comment = "Protection for non-player entities depends only on the location, so all of them share one cache. Specify the maximum number of cached chunks")
+    private long protectionEntityCacheSize = 4096;
     @ConfigField(name = "global.protection.worldguard")
     private boolean protectionWorldGuard = true;
     @ConfigField(name = "global.protection.lwc")
@@ -131,6 +163,20 @@ public class AbilitySlotsConfig extends YamlConfig {
     private String commandPresetActivatedMessage = "§aYou have successfully activated the specified preset";
     @ConfigField(name = "language.command.message.preset.deleted")
     private String commandPresetDeletedMessage = "§aYou have successfully deleted the specified preset";
+    @ConfigField(name = "language.command.message.collision.ticks")
+    private String commandCollisionTicksMessage = "§6Collision ticks: §f";
+    @ConfigField(name = "language.command.message.collision.lastTick")
+    private String commandCollisionLastTickMessage = "§6Last tick: §f";
+    @ConfigField(name = "language.command.message.collision.total")
+    private String commandCollisionTotalMessage = "§6Total: §f";
+    @ConfigField(name = "language.command.message.collision.counters", comment = "Placeholders: {participants}, {candidatePairs}, {totalPairs}, {tests}, {hits}, {callbacks}")
+    private String commandCollisionCountersMessage = "{participants} participants, {candidatePairs}/{totalPairs} pairs, {tests} tests, {hits} hits, {callbacks} callbacks";
+    @ConfigField(name = "language.command.message.collision.phase", comment = "Placeholders: {phase}, {last}, {mean}, {p50}, {p99}, {max}")
+    private String commandCollisionPhaseMessage = "§6{phase}: §flast {last}, mean {mean}, p50 {p50}, p99 {p99}, max {max}";
+    @ConfigField(name = "language.command.message.collision.topAbilities")
+    private String commandCollisionTopAbilitiesMessage = "§6Top abilities by tests:";
+    @ConfigField(name = "language.command.message.collision.ability", comment = "Placeholders: {ability}, {instances}, {colliders}, {tests}, {hits}, {callbacks}")
+    private String commandCollisionAbilityMessage = "§7{ability}: §f{instances} instances, {colliders} colliders, {tests} tests, {hits} hits, {callbacks} callbacks";
 
     @ConfigField(name = "language.command.description.display")
     private String commandDisplayDescription = "Show available abilities \\(in specified category\\)";
@@ -148,6 +194,8 @@ public class AbilitySlotsConfig extends YamlConfig {
     private String commandPresetDeleteDescription = "Delete the specified preset";
     @ConfigField(name = "language.command.description.preset.bind")
     private String commandPresetBindDescription = "Activate the specified preset";
+    @ConfigField(name = "language.command.description.collision")
+    private String commandCollisionDescription = "Show ability collision statistics \\(reset to start counting again\\)";
     @ConfigField(name = "language.command.description.reload")
     private String commandReloadDescription = "Reload plugin config and abilities";
 
@@ -159,6 +207,10 @@ public class AbilitySlotsConfig extends YamlConfig {
         return AbilityCastPreventType.valueOf(castPreventType);
     }
 
+    public ClockMode getClockMode() {
+        return ClockMode.valueOf(clockMode);
+    }
+
     public BarColor getEnergyColor() {
         return BarColor.valueOf(energyColor);
     }
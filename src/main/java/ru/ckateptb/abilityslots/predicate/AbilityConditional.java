@@ -23,13 +23,13 @@ import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
 import ru.ckateptb.abilityslots.user.AbilityUser;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public interface AbilityConditional extends Conditional<AbilityInformation> {
     AbilityConditional IS_BINDABLE = (user, ability) -> ability != null && ability.isCanBindToSlot();
 
-    AbilityConditional HAS_ABILITY_PERMISSION = (user, ability) -> ability != null && user.hasPermission(String.format("abilityslots.abilities.%s.%s", ability.getCategory().getName(), ability.getName()).toLowerCase());
+    AbilityConditional HAS_ABILITY_PERMISSION = (user, ability) -> ability != null && user.hasPermission(ability);
 
     AbilityConditional HAS_ABILITY_CATEGORY_PERMISSION = (user, ability) -> ability != null && CategoryConditional.HAS_CATEGORY_PERMISSION.matches(user, ability.getCategory());
 
@@ -46,55 +46,66 @@ public interface AbilityConditional extends Conditional<AbilityInformation> {
 
     @NoArgsConstructor
     class Builder {
-        private final Set<AbilityConditional> conditionals = new HashSet<>();
+        // Conditional to its estimated cost, see ConditionalPipeline
+        private final Map<AbilityConditional, Integer> conditionals = new LinkedHashMap<>();
 
         public Builder isEnabled() {
-            conditionals.add(IS_ENABLED);
+            add(IS_ENABLED, ConditionalPipeline.FIELD);
             return this;
         }
 
         public Builder isBindable() {
-            conditionals.add(IS_BINDABLE);
+            add(IS_BINDABLE, ConditionalPipeline.FIELD);
             return this;
         }
 
         public Builder hasPermission() {
-            conditionals.add(HAS_ABILITY_PERMISSION);
+            add(HAS_ABILITY_PERMISSION, ConditionalPipeline.PERMISSION);
             return this;
         }
 
         public Builder hasCategory() {
-            conditionals.add(HAS_ABILITY_CATEGORY_PERMISSION);
+            add(HAS_ABILITY_CATEGORY_PERMISSION, ConditionalPipeline.PERMISSION);
             return this;
         }
 
         public Builder withoutCooldown() {
-            conditionals.add(NOT_ON_COOLDOWN);
+            add(NOT_ON_COOLDOWN, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder enoughEnergy() {
-            conditionals.add(ENOUGH_ENERGY);
+            add(ENOUGH_ENERGY, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder gameModeNot(GameMode... gameModes) {
-            conditionals.add((user, ability) -> !user.isPlayer() || !Arrays.asList(gameModes).contains(user.getGameMode()));
+            add((user, ability) -> !user.isPlayer() || !Arrays.asList(gameModes).contains(user.getGameMode()), ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder paralyze() {
-            conditionals.add(NOT_PARALYZED);
+            add(NOT_PARALYZED, ConditionalPipeline.METADATA);
             return this;
         }
 
         public Builder custom(AbilityConditional conditional) {
-            conditionals.add(conditional);
+            add(conditional, ConditionalPipeline.CUSTOM);
             return this;
         }
 
         public AbilityConditional build() {
-            return (user, ability) -> conditionals.stream().allMatch(conditional -> conditional.matches(user, ability));
+            AbilityConditional[] pipeline = ConditionalPipeline.compile(conditionals, AbilityConditional[]::new);
+            return (user, ability) -> {
+                for (AbilityConditional conditional : pipeline) {
+                    if (!conditional.matches(user, ability)) return false;
+                }
+                return true;
+            };
+        }
+
+        private void add(AbilityConditional conditional, int cost) {
+            conditionals.putIfAbsent(conditional, cost);
         }
     }
 }
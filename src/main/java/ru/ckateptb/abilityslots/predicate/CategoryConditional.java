@@ -21,28 +21,39 @@ import lombok.NoArgsConstructor;
 import ru.ckateptb.abilityslots.category.AbilityCategory;
 import ru.ckateptb.abilityslots.user.AbilityUser;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public interface CategoryConditional extends Conditional<AbilityCategory> {
-    CategoryConditional HAS_CATEGORY_PERMISSION = (user, category) -> category != null && user.hasPermission(String.format("abilityslots.abilities.%s", category.getName()).toLowerCase());
+    CategoryConditional HAS_CATEGORY_PERMISSION = (user, category) -> category != null && user.hasPermission(category);
 
     @NoArgsConstructor
     class Builder {
-        private final Set<CategoryConditional> conditionals = new HashSet<>();
+        // Conditional to its estimated cost, see ConditionalPipeline
+        private final Map<CategoryConditional, Integer> conditionals = new LinkedHashMap<>();
 
         public Builder hasPermission() {
-            conditionals.add(HAS_CATEGORY_PERMISSION);
+            add(HAS_CATEGORY_PERMISSION, ConditionalPipeline.PERMISSION);
             return this;
         }
 
         public Builder custom(CategoryConditional conditional) {
-            conditionals.add(conditional);
+            add(conditional, ConditionalPipeline.CUSTOM);
             return this;
         }
 
         public CategoryConditional build() {
-            return (user, ability) -> conditionals.stream().allMatch(conditional -> conditional.matches(user, ability));
+            CategoryConditional[] pipeline = ConditionalPipeline.compile(conditionals, CategoryConditional[]::new);
+            return (user, category) -> {
+                for (CategoryConditional conditional : pipeline) {
+                    if (!conditional.matches(user, category)) return false;
+                }
+                return true;
+            };
+        }
+
+        private void add(CategoryConditional conditional, int cost) {
+            conditionals.putIfAbsent(conditional, cost);
         }
     }
 
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package ru.ckateptb.abilityslots.predicate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Orders the conditionals of a builder by estimated cost, so cheap checks short-circuit expensive ones.
+ * Conditionals with the same cost keep the order in which they were added.
+ */
+final class ConditionalPipeline {
+    // Plain field reads
+    static final int FIELD = 0;
+    // Entity state and map lookups
+    static final int STATE = 1;
+    static final int METADATA = 2;
+    static final int PERMISSION = 3;
+    // Block lookups and protection checks
+    static final int WORLD = 4;
+    static final int CUSTOM = 5;
+    // Conditionals with side effects (e.g. energy consumption) are evaluated last
+    static final int SIDE_EFFECT = 6;
+
+    private ConditionalPipeline() {
+    }
+
+    static <T> T[] compile(Map<T, Integer> conditionals, IntFunction<T[]> generator) {
+        List<Map.Entry<T, Integer>> entries = new ArrayList<>(conditionals.entrySet());
+        entries.sort(Comparator.comparingInt(Map.Entry::getValue));
+        T[] result = generator.apply(entries.size());
+        for (int i = 0; i < result.length; i++) {
+            result[i] = entries.get(i).getKey();
+        }
+        return result;
+    }
+}
@@ -24,12 +24,14 @@ import org.bukkit.World;
 import org.bukkit.block.Block;
 import ru.ckateptb.abilityslots.ability.Ability;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
+import ru.ckateptb.abilityslots.service.ClockService;
 import ru.ckateptb.abilityslots.user.AbilityUser;
+import ru.ckateptb.tablecloth.ioc.IoC;
 import ru.ckateptb.tablecloth.math.ImmutableVector;
 
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
@@ -51,205 +53,207 @@ public interface RemovalConditional extends Conditional<Ability> {
 
     @NoArgsConstructor
     class Builder {
-        private final Set<RemovalConditional> policies = new HashSet<>();
+        // Policy to its estimated cost, see ConditionalPipeline
+        private final Map<RemovalConditional, Integer> policies = new LinkedHashMap<>();
+        private final ClockService clock = IoC.get(ClockService.class);
 
         public Builder offline() {
-            policies.add(IS_OFFLINE);
+            add(IS_OFFLINE, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder dead() {
-            policies.add(IS_DEAD);
+            add(IS_DEAD, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder world() {
-            policies.add((user, ability) -> !Objects.equals(user.getWorld(), ability.getWorld()));
+            add((user, ability) -> !Objects.equals(user.getWorld(), ability.getWorld()), ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder world(World world) {
-            policies.add((user, ability) -> !Objects.equals(user.getWorld(), world));
+            add((user, ability) -> !Objects.equals(user.getWorld(), world), ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder sneaking(boolean shouldSneaking) {
-            policies.add(shouldSneaking ? IS_NOT_SNEAKING : IS_SNEAKING);
+            add(shouldSneaking ? IS_NOT_SNEAKING : IS_SNEAKING, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder duration(long duration) {
             if (duration > 0) {
-                long expire = System.currentTimeMillis() + duration;
-                policies.add((user, ability) -> System.currentTimeMillis() > expire);
+                long expire = clock.getTime() + duration;
+                add((user, ability) -> clock.getTime() > expire, ConditionalPipeline.FIELD);
             }
             return this;
         }
 
         public Builder range(Supplier<Location> from, Supplier<Location> to, double range) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 Location fromLocation = from.get();
                 Location toLocation = to.get();
                 return !Objects.equals(fromLocation.getWorld(), toLocation.getWorld()) || fromLocation.distance(toLocation) > range;
-            });
+            }, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder range(Supplier<Location> from, Supplier<Location> to, Supplier<Double> range) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 Location fromLocation = from.get();
                 Location toLocation = to.get();
                 return !Objects.equals(fromLocation.getWorld(), toLocation.getWorld()) || fromLocation.distance(toLocation) > range.get();
-            });
+            }, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder canUse(Supplier<Location> location) {
-            policies.add((user, ability) -> !user.canUse(location.get()));
+            add((user, ability) -> !user.canUse(location.get()), ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder slot() {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 AbilityInformation information = user.getSelectedAbility();
                 return user.isPlayer() && (information == null || !information.getAbilityClass().equals(ability.getClass()));
-            });
+            }, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder slot(Class<? extends Ability> type) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 AbilityInformation information = user.getSelectedAbility();
                 return user.isPlayer() && (information == null || !information.getAbilityClass().equals(type));
-            });
+            }, ConditionalPipeline.STATE);
             return this;
         }
 
         public Builder costInterval(long interval) {
-            AtomicLong expiredEnergySafeTime = new AtomicLong(System.currentTimeMillis() + interval);
-            policies.add((user, ability) -> {
-                if(System.currentTimeMillis() > expiredEnergySafeTime.get()) {
-                    expiredEnergySafeTime.set(System.currentTimeMillis() + interval);
+            AtomicLong expiredEnergySafeTime = new AtomicLong(clock.getTime() + interval);
+            add((user, ability) -> {
+                if(clock.getTime() > expiredEnergySafeTime.get()) {
+                    expiredEnergySafeTime.set(clock.getTime() + interval);
                     return !user.removeEnergy(ability);
                 }
                 return false;
-            });
+            }, ConditionalPipeline.SIDE_EFFECT);
             return this;
         }
 
         public Builder costInterval(double amount, long interval) {
-            AtomicLong expiredEnergySafeTime = new AtomicLong(System.currentTimeMillis() + interval);
-            policies.add((user, ability) -> {
-                if(System.currentTimeMillis() > expiredEnergySafeTime.get()) {
-                    expiredEnergySafeTime.set(System.currentTimeMillis() + interval);
+            AtomicLong expiredEnergySafeTime = new AtomicLong(clock.getTime() + interval);
+            add((user, ability) -> {
+                if(clock.getTime() > expiredEnergySafeTime.get()) {
+                    expiredEnergySafeTime.set(clock.getTime() + interval);
                     return !user.removeEnergy(amount);
                 }
                 return false;
-            });
+            }, ConditionalPipeline.SIDE_EFFECT);
             return this;
         }
 
         public Builder water(boolean shouldStayInWater) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean inWater = user.getLocation().toBlock(user.getWorld()).getType() == Material.WATER;
                 return inWater == !shouldStayInWater;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder water(ImmutableVector location, boolean shouldBeWater) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean inWater = location.toBlock(user.getWorld()).getType() == Material.WATER;
                 return inWater == !shouldBeWater;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder water(Location location, boolean shouldBeWater) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean inWater = location.getBlock().getType() == Material.WATER;
                 return inWater == !shouldBeWater;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder liquid(boolean shouldStayInLiquid) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean inLiquid = user.getLocation().toBlock(user.getWorld()).isLiquid();
                 return inLiquid == !shouldStayInLiquid;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder liquid(ImmutableVector location, boolean shouldBeLiquid) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean inLiquid = location.toBlock(user.getWorld()).isLiquid();
                 return inLiquid == !shouldBeLiquid;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder liquid(Location location, boolean shouldBeLiquid) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean inLiquid = location.getBlock().isLiquid();
                 return inLiquid == !shouldBeLiquid;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder passable(boolean shouldStayInPassable) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean passable = user.getLocation().toBlock(user.getWorld()).isPassable();
                 return passable == !shouldStayInPassable;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder passable(ImmutableVector location, boolean shouldBePassable) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean passable = location.toBlock(user.getWorld()).isPassable();
                 return passable == !shouldBePassable;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder passable(Location location, boolean shouldBePassable) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 boolean passable = location.getBlock().isPassable();
                 return passable == !shouldBePassable;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder passableNoLiquid(boolean shouldStayInPassable) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 Block block = user.getLocation().toBlock(user.getWorld());
                 boolean passable = block.isPassable() && !block.isLiquid();
                 return passable == !shouldStayInPassable;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder passableNoLiquid(ImmutableVector location, boolean shouldBePassable) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 Block block = location.toBlock(user.getWorld());
                 boolean passable = block.isPassable() && !block.isLiquid();
                 return passable == !shouldBePassable;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder passableNoLiquid(Location location, boolean shouldBePassable) {
-            policies.add((user, ability) -> {
+            add((user, ability) -> {
                 Block block = location.getBlock();
                 boolean passable = block.isPassable() && !block.isLiquid();
                 return passable == !shouldBePassable;
-            });
+            }, ConditionalPipeline.WORLD);
             return this;
         }
 
         public Builder custom(RemovalConditional conditional) {
-            policies.add(conditional);
+            add(conditional, ConditionalPipeline.CUSTOM);
             return this;
         }
 
@@ -259,7 +263,17 @@ public interface RemovalConditional extends Conditional<Ability> {
         }
 
         public RemovalConditional build() {
-            return (user, ability) -> policies.stream().anyMatch(police -> police.shouldRemove(user, ability));
+            RemovalConditional[] pipeline = ConditionalPipeline.compile(policies, RemovalConditional[]::new);
+            return (user, ability) -> {
+                for (RemovalConditional police : pipeline) {
+                    if (police.shouldRemove(user, ability)) return true;
+                }
+                return false;
+            };
+        }
+
+        private void add(RemovalConditional policy, int cost) {
+            policies.putIfAbsent(policy, cost);
         }
     }
 }
@@ -17,12 +17,34 @@
 
 package ru.ckateptb.abilityslots.protection;
 
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.util.BoundingBox;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 
 public abstract class AbstractProtection implements Protection {
     protected final AbilitySlotsConfig config;
+    private ProtectionInvalidator invalidator;
 
     protected AbstractProtection(AbilitySlotsConfig config) {
         this.config = config;
     }
+
+    @Override
+    public void setInvalidator(ProtectionInvalidator invalidator) {
+        this.invalidator = invalidator;
+    }
+
+    protected void invalidate(World world, BoundingBox area) {
+        if (invalidator != null) {
+            invalidator.invalidate(world, area);
+        }
+    }
+
+    /**
+     * Invalidate the blocks between two corners, both inclusive
+     */
+    protected void invalidateCorners(Location first, Location second) {
+        invalidate(first.getWorld(), BoundingBox.of(first.getBlock(), second.getBlock()));
+    }
 }
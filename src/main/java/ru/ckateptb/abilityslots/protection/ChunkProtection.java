@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.protection;
+
+import lombok.Getter;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.LivingEntity;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protection decision of one chunk for one user. Protections that decided the whole chunk are not asked again,
+ * the remaining ones are asked per block and their answers are remembered.
+ */
+public final class ChunkProtection {
+    private static final Protection[] EMPTY = new Protection[0];
+    @Getter
+    private final World world;
+    @Getter
+    private final int chunkX;
+    @Getter
+    private final int chunkZ;
+    @Getter
+    private final ProtectionResult result;
+    // Whether every protection asked for this chunk reports its changes
+    @Getter
+    private final boolean reported;
+    private final long created = System.currentTimeMillis();
+    private final Protection[] mixed;
+    private final BitSet known = new BitSet();
+    private final BitSet allowed = new BitSet();
+
+    private ChunkProtection(World world, int chunkX, int chunkZ, ProtectionResult result, boolean reported, Protection[] mixed) {
+        this.world = world;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.result = result;
+        this.reported = reported;
+        this.mixed = mixed;
+    }
+
+    public static ChunkProtection compute(Collection<Protection> protections, LivingEntity entity, World world, int chunkX, int chunkZ) {
+        return compute(protections, entity, world, chunkX, chunkZ, Map.of());
+    }
+
+    /**
+     * @param precomputed chunk-level results that were already computed, e.g. off the main thread
+     */
+    public static ChunkProtection compute(Collection<Protection> protections, LivingEntity entity, World world, int chunkX, int chunkZ, Map<Protection, ProtectionResult> precomputed) {
+        List<Protection> mixed = new ArrayList<>();
+        boolean reported = true;
+        for (Protection protection : protections) {
+            reported &= protection.isReportingChanges();
+            ProtectionResult result = precomputed.get(protection);
+            if (result == null) {
+                result = protection.canUse(entity, world, chunkX, chunkZ);
+            }
+            if (result == ProtectionResult.DENY) {
+                return new ChunkProtection(world, chunkX, chunkZ, ProtectionResult.DENY, reported, EMPTY);
+            }
+            if (result == ProtectionResult.MIXED) {
+                mixed.add(protection);
+            }
+        }
+        if (mixed.isEmpty()) {
+            return new ChunkProtection(world, chunkX, chunkZ, ProtectionResult.ALLOW, reported, EMPTY);
+        }
+        return new ChunkProtection(world, chunkX, chunkZ, ProtectionResult.MIXED, reported, mixed.toArray(EMPTY));
+    }
+
+    public boolean isOlderThan(long duration) {
+        return System.currentTimeMillis() - created > duration;
+    }
+
+    public boolean canUse(LivingEntity entity, Location location) {
+        if (result != ProtectionResult.MIXED) return result == ProtectionResult.ALLOW;
+        int y = location.getBlockY();
+        if (y < world.getMinHeight() || y >= world.getMaxHeight()) return query(entity, location);
+        int index = (y - world.getMinHeight()) << 8 | (location.getBlockZ() & 15) << 4 | (location.getBlockX() & 15);
+        if (known.get(index)) return allowed.get(index);
+        boolean value = query(entity, location);
+        known.set(index);
+        if (value) allowed.set(index);
+        return value;
+    }
+
+    private boolean query(LivingEntity entity, Location location) {
+        for (Protection protection : mixed) {
+            if (!protection.canUse(entity, location)) return false;
+        }
+        return true;
+    }
+}
@@ -19,13 +19,22 @@ package ru.ckateptb.abilityslots.protection;
 
 import me.ryanhamshire.GriefPrevention.Claim;
 import me.ryanhamshire.GriefPrevention.GriefPrevention;
+import me.ryanhamshire.GriefPrevention.events.ClaimCreatedEvent;
+import me.ryanhamshire.GriefPrevention.events.ClaimDeletedEvent;
+import me.ryanhamshire.GriefPrevention.events.ClaimModifiedEvent;
+import me.ryanhamshire.GriefPrevention.events.ClaimTransferEvent;
+import me.ryanhamshire.GriefPrevention.events.TrustChangedEvent;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
 import org.bukkit.plugin.Plugin;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 
-public final class GriefPreventionProtection extends AbstractProtection {
+public final class GriefPreventionProtection extends AbstractProtection implements Listener {
     private final GriefPrevention griefPrevention;
 
     public GriefPreventionProtection(Plugin plugin, AbilitySlotsConfig config) {
@@ -43,4 +52,50 @@ public final class GriefPreventionProtection extends AbstractProtection {
         }
         return true;
     }
+
+    @Override
+    public ProtectionResult canUse(LivingEntity entity, World world, int chunkX, int chunkZ) {
+        if (!config.isProtectionGriefPrevention() || !(entity instanceof Player)) return ProtectionResult.ALLOW;
+        // Claims are indexed by chunk coordinates of every world
+        for (Claim claim : griefPrevention.dataStore.getClaims(chunkX, chunkZ)) {
+            if (world.equals(claim.getLesserBoundaryCorner().getWorld())) return ProtectionResult.MIXED;
+        }
+        return ProtectionResult.ALLOW;
+    }
+
+    @Override
+    public boolean isReportingChanges() {
+        return true;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(ClaimCreatedEvent event) {
+        invalidate(event.getClaim());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(ClaimDeletedEvent event) {
+        invalidate(event.getClaim());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(ClaimModifiedEvent event) {
+        invalidate(event.getFrom());
+        invalidate(event.getTo());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(ClaimTransferEvent event) {
+        invalidate(event.getClaim());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(TrustChangedEvent event) {
+        event.getClaims().forEach(this::invalidate);
+    }
+
+    private void invalidate(Claim claim) {
+        if (claim == null) return;
+        invalidateCorners(claim.getLesserBoundaryCorner(), claim.getGreaterBoundaryCorner());
+    }
 }
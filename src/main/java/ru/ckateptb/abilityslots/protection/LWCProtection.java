@@ -19,18 +19,56 @@ package ru.ckateptb.abilityslots.protection;
 
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.lwc.LWCPlugin;
+import com.griefcraft.scripting.JavaModule;
+import com.griefcraft.scripting.event.LWCCommandEvent;
+import com.griefcraft.scripting.event.LWCProtectionInteractEvent;
+import com.griefcraft.scripting.event.LWCProtectionRegistrationPostEvent;
+import com.griefcraft.scripting.event.LWCProtectionRemovePostEvent;
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.util.BoundingBox;
+import ru.ckateptb.abilityslots.AbilitySlots;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 
-public final class LWCProtection extends AbstractProtection {
+public final class LWCProtection extends AbstractProtection implements Listener {
     private final LWC lwc;
 
     public LWCProtection(Plugin plugin, AbilitySlotsConfig config) {
         super(config);
         lwc = ((LWCPlugin) plugin).getLWC();
+        lwc.getModuleLoader().registerModule(AbilitySlots.getInstance(), new JavaModule() {
+            @Override
+            public void onPostRegistration(LWCProtectionRegistrationPostEvent event) {
+                invalidate(event.getProtection());
+            }
+
+            @Override
+            public void onPostRemoval(LWCProtectionRemovePostEvent event) {
+                invalidate(event.getProtection());
+            }
+
+            // Access changes are applied by other modules while handling the same event
+            @Override
+            public void onProtectionInteract(LWCProtectionInteractEvent event) {
+                if (!event.hasAction("modify")) return;
+                com.griefcraft.model.Protection protection = event.getProtection();
+                Bukkit.getScheduler().runTask(AbilitySlots.getInstance(), () -> invalidate(protection));
+            }
+
+            // A password unlock grants access to protections that are not known here
+            @Override
+            public void onCommand(LWCCommandEvent event) {
+                if (!event.hasFlag("u", "unlock")) return;
+                Bukkit.getScheduler().runTask(AbilitySlots.getInstance(), () -> invalidate(null, null));
+            }
+        });
     }
 
     @Override
@@ -42,4 +80,28 @@ public final class LWCProtection extends AbstractProtection {
         }
         return true;
     }
+
+    @Override
+    public ProtectionResult canUse(LivingEntity entity, World world, int chunkX, int chunkZ) {
+        if (!config.isProtectionLWC() || !(entity instanceof Player)) return ProtectionResult.ALLOW;
+        return ProtectionResult.MIXED;
+    }
+
+    @Override
+    public boolean isReportingChanges() {
+        return true;
+    }
+
+    @EventHandler
+    public void on(PluginDisableEvent event) {
+        if (event.getPlugin().equals(AbilitySlots.getInstance())) {
+            lwc.getModuleLoader().removeModules(AbilitySlots.getInstance());
+        }
+    }
+
+    private void invalidate(com.griefcraft.model.Protection protection) {
+        World world = Bukkit.getWorld(protection.getWorld());
+        if (world == null) return;
+        invalidate(world, new BoundingBox(protection.getX(), protection.getY(), protection.getZ(), protection.getX() + 1, protection.getY() + 1, protection.getZ() + 1));
+    }
 }
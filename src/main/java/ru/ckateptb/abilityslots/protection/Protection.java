@@ -18,8 +18,42 @@
 package ru.ckateptb.abilityslots.protection;
 
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.LivingEntity;
 
 public interface Protection {
     boolean canUse(LivingEntity entity, Location location);
+
+    /**
+     * Decide the whole chunk at once. Return {@link ProtectionResult#MIXED} if the answer may differ between blocks
+     * of the chunk, these are then checked with {@link #canUse(LivingEntity, Location)}.
+     */
+    default ProtectionResult canUse(LivingEntity entity, World world, int chunkX, int chunkZ) {
+        return ProtectionResult.MIXED;
+    }
+
+    /**
+     * Resolve everything that needs the main thread (permissions, player state) for a chunk-level check that is then
+     * used outside the main thread to prefetch decisions.
+     *
+     * @return null if the chunk-level check can only be called on the main thread
+     */
+    default ChunkQuery prepareChunkQuery(LivingEntity entity, World world) {
+        return null;
+    }
+
+    /**
+     * @return true if every change of the rules is reported to the {@link ProtectionInvalidator}, otherwise the cached
+     * decisions expire sooner
+     */
+    default boolean isReportingChanges() {
+        return false;
+    }
+
+    /**
+     * Called once the protection is registered. The protection reports areas whose rules changed, so the decisions
+     * can be cached for a long time.
+     */
+    default void setInvalidator(ProtectionInvalidator invalidator) {
+    }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.protection;
+
+import org.bukkit.World;
+import org.bukkit.util.BoundingBox;
+
+@FunctionalInterface
+public interface ProtectionInvalidator {
+    /**
+     * Drop cached decisions of the area
+     *
+     * @param world the world of the area, null for every world
+     * @param area  the changed blocks, null for the whole world
+     */
+    void invalidate(World world, BoundingBox area);
+}
@@ -18,17 +18,34 @@
 package ru.ckateptb.abilityslots.protection;
 
 import com.palmergames.bukkit.towny.TownyAPI;
+import com.palmergames.bukkit.towny.TownySettings;
+import com.palmergames.bukkit.towny.event.DeleteTownEvent;
+import com.palmergames.bukkit.towny.event.NationAddTownEvent;
+import com.palmergames.bukkit.towny.event.NationRemoveTownEvent;
+import com.palmergames.bukkit.towny.event.PlotChangeOwnerEvent;
+import com.palmergames.bukkit.towny.event.PlotChangeTypeEvent;
+import com.palmergames.bukkit.towny.event.TownAddResidentEvent;
+import com.palmergames.bukkit.towny.event.TownBlockSettingsChangedEvent;
+import com.palmergames.bukkit.towny.event.TownClaimEvent;
+import com.palmergames.bukkit.towny.event.TownRemoveResidentEvent;
+import com.palmergames.bukkit.towny.event.TownUnclaimEvent;
 import com.palmergames.bukkit.towny.object.TownBlock;
 import com.palmergames.bukkit.towny.object.TownyPermission;
+import com.palmergames.bukkit.towny.object.WorldCoord;
 import com.palmergames.bukkit.towny.utils.PlayerCacheUtil;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.util.BoundingBox;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 
-public final class TownyProtection extends AbstractProtection {
+public final class TownyProtection extends AbstractProtection implements Listener {
     private final TownyAPI api;
 
     public TownyProtection(Plugin plugin, AbilitySlotsConfig config) {
@@ -45,4 +62,83 @@ public final class TownyProtection extends AbstractProtection {
         TownBlock townBlock = api.getTownBlock(location);
         return townBlock == null || !townBlock.hasTown();
     }
+
+    @Override
+    public ProtectionResult canUse(LivingEntity entity, World world, int chunkX, int chunkZ) {
+        if (!config.isProtectionTowny()) return ProtectionResult.ALLOW;
+        // Towny decides per town block, which matches the chunk only with the default town block size
+        if (TownySettings.getTownBlockSize() != 16) return ProtectionResult.MIXED;
+        return canUse(entity, new Location(world, chunkX << 4, world.getMinHeight(), chunkZ << 4)) ? ProtectionResult.ALLOW : ProtectionResult.DENY;
+    }
+
+    @Override
+    public boolean isReportingChanges() {
+        return true;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(TownClaimEvent event) {
+        invalidate(event.getTownBlock().getWorldCoord());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(TownUnclaimEvent event) {
+        invalidate(event.getWorldCoord());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(PlotChangeOwnerEvent event) {
+        invalidate(event.getTownBlock().getWorldCoord());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(PlotChangeTypeEvent event) {
+        invalidate(event.getTownBlock().getWorldCoord());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(TownBlockSettingsChangedEvent event) {
+        if (event.getTownBlock() != null) {
+            invalidate(event.getTownBlock().getWorldCoord());
+        } else {
+            // Town or world permissions apply to blocks this protection does not track
+            invalidate(null, null);
+        }
+    }
+
+    // Membership decides the permissions in every block of the town and its allies
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(TownAddResidentEvent event) {
+        invalidate(null, null);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(TownRemoveResidentEvent event) {
+        invalidate(null, null);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(NationAddTownEvent event) {
+        invalidate(null, null);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(NationRemoveTownEvent event) {
+        invalidate(null, null);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(DeleteTownEvent event) {
+        // The deleted town blocks are no longer known here
+        invalidate(null, null);
+    }
+
+    private void invalidate(WorldCoord coord) {
+        if (coord == null) return;
+        int size = TownySettings.getTownBlockSize();
+        World world = coord.getBukkitWorld();
+        int x = coord.getX() * size;
+        int z = coord.getZ() * size;
+        invalidate(world, new BoundingBox(x, world.getMinHeight(), z, x + size, world.getMaxHeight(), z + size));
+    }
 }
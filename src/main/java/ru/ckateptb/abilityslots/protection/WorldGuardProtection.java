@@ -18,25 +18,46 @@
 package ru.ckateptb.abilityslots.protection;
 
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.math.BlockVector3;
 import com.sk89q.worldedit.world.World;
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.WorldGuard;
 import com.sk89q.worldguard.bukkit.WorldGuardPlugin;
 import com.sk89q.worldguard.domains.Association;
+import com.sk89q.worldguard.domains.DefaultDomain;
+import com.sk89q.worldguard.protection.association.RegionAssociable;
 import com.sk89q.worldguard.protection.flags.Flags;
 import com.sk89q.worldguard.protection.flags.StateFlag;
 import com.sk89q.worldguard.protection.flags.registry.FlagConflictException;
 import com.sk89q.worldguard.protection.flags.registry.FlagRegistry;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 import com.sk89q.worldguard.protection.regions.RegionQuery;
 import lombok.extern.slf4j.Slf4j;
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.bukkit.event.server.ServerCommandEvent;
 import org.bukkit.plugin.Plugin;
+import ru.ckateptb.abilityslots.AbilitySlots;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
 @Slf4j
-public final class WorldGuardProtection extends AbstractProtection {
+public final class WorldGuardProtection extends AbstractProtection implements Listener {
+    private static final Set<String> REGION_COMMANDS = Set.of("rg", "region", "regions");
+    private static final long ASYNC_COMMAND_DELAY = 40;
     private final WorldGuard worldGuard;
     private StateFlag flag;
 
@@ -70,4 +91,118 @@ public final class WorldGuardProtection extends AbstractProtection {
         // Query WorldGuard to see if a non-member (entity) can build in a region.
         return query.testState(worldGuardLocation, list -> Association.NON_MEMBER, flag);
     }
+
+    @Override
+    public ProtectionResult canUse(LivingEntity entity, org.bukkit.World world, int chunkX, int chunkZ) {
+        return prepareChunkQuery(entity, world).canUse(chunkX, chunkZ);
+    }
+
+    @Override
+    public boolean isReportingChanges() {
+        return !config.isProtectionWorldGuard();
+    }
+
+    @Override
+    public ChunkQuery prepareChunkQuery(LivingEntity entity, org.bukkit.World world) {
+        if (!config.isProtectionWorldGuard()) return (chunkX, chunkZ) -> ProtectionResult.ALLOW;
+        RegionAssociable subject = list -> Association.NON_MEMBER;
+        if (entity instanceof Player player) {
+            LocalPlayer localPlayer = WorldGuardPlugin.inst().wrapPlayer(player);
+            if (worldGuard.getPlatform().getSessionManager().hasBypass(localPlayer, BukkitAdapter.adapt(world))) {
+                return (chunkX, chunkZ) -> ProtectionResult.ALLOW;
+            }
+            // Group lookups go through the permission plugin, so only a snapshot is handed to the worker
+            subject = new MemberSnapshot(localPlayer);
+        }
+        RegionAssociable associable = subject;
+        return (chunkX, chunkZ) -> queryChunk(associable, world, chunkX, chunkZ);
+    }
+
+    private ProtectionResult queryChunk(RegionAssociable subject, org.bukkit.World world, int chunkX, int chunkZ) {
+        RegionManager manager = worldGuard.getPlatform().getRegionContainer().get(BukkitAdapter.adapt(world));
+        if (manager == null) return ProtectionResult.MIXED;
+        int x = chunkX << 4;
+        int z = chunkZ << 4;
+        BlockVector3 min = BlockVector3.at(x, world.getMinHeight(), z);
+        BlockVector3 max = BlockVector3.at(x + 15, world.getMaxHeight() - 1, z + 15);
+        if (manager.getApplicableRegions(new ProtectedCuboidRegion("abilityslots_chunk", min, max)).size() > 0) {
+            return ProtectionResult.MIXED;
+        }
+        // Only the global region applies, so any block of the chunk gives the same answer
+        RegionQuery query = worldGuard.getPlatform().getRegionContainer().createQuery();
+        Location location = new Location(world, x, world.getMinHeight(), z);
+        return query.testState(BukkitAdapter.adapt(location), subject, flag) ? ProtectionResult.ALLOW : ProtectionResult.DENY;
+    }
+
+    // WorldGuard has no region change events, so drop everything after any region command. Changes made through the
+    // API of other plugins are only picked up once the cached data expires, see isReportingChanges
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(PlayerCommandPreprocessEvent event) {
+        invalidateAfterCommand(event.getMessage());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(ServerCommandEvent event) {
+        invalidateAfterCommand(event.getCommand());
+    }
+
+    private void invalidateAfterCommand(String command) {
+        String label = command.stripLeading();
+        if (label.startsWith("/")) label = label.substring(1);
+        int space = label.indexOf(' ');
+        if (space >= 0) label = label.substring(0, space);
+        label = label.toLowerCase(Locale.ROOT);
+        if (label.startsWith("worldguard:")) label = label.substring("worldguard:".length());
+        if (!REGION_COMMANDS.contains(label)) return;
+        // The command is executed after this event, but WorldGuard applies most region edits asynchronously
+        Bukkit.getScheduler().runTask(AbilitySlots.getInstance(), () -> invalidate(null, null));
+        Bukkit.getScheduler().runTaskLater(AbilitySlots.getInstance(), () -> invalidate(null, null), ASYNC_COMMAND_DELAY);
+    }
+
+    // Same association rules as LocalPlayer, resolved against the player's identity and groups at creation time
+    private static final class MemberSnapshot implements RegionAssociable {
+        private final UUID uuid;
+        private final String name;
+        private final Set<String> groups = new HashSet<>();
+
+        private MemberSnapshot(LocalPlayer player) {
+            this.uuid = player.getUniqueId();
+            this.name = player.getName();
+            for (String group : player.getGroups()) {
+                groups.add(group.toLowerCase(Locale.ROOT));
+            }
+        }
+
+        @Override
+        public Association getAssociation(List<ProtectedRegion> regions) {
+            boolean member = false;
+            for (ProtectedRegion region : regions) {
+                if (isOwner(region)) return Association.OWNER;
+                if (!member && isMember(region)) member = true;
+            }
+            return member ? Association.MEMBER : Association.NON_MEMBER;
+        }
+
+        private boolean isOwner(ProtectedRegion region) {
+            for (ProtectedRegion current = region; current != null; current = current.getParent()) {
+                if (contains(current.getOwners())) return true;
+            }
+            return false;
+        }
+
+        private boolean isMember(ProtectedRegion region) {
+            for (ProtectedRegion current = region; current != null; current = current.getParent()) {
+                if (contains(current.getOwners()) || contains(current.getMembers())) return true;
+            }
+            return false;
+        }
+
+        private boolean contains(DefaultDomain domain) {
+            if (domain.contains(uuid) || domain.contains(name)) return true;
+            for (String group : domain.getGroups()) {
+                if (groups.contains(group.toLowerCase(Locale.ROOT))) return true;
+            }
+            return false;
+        }
+    }
 }
@@ -17,53 +17,191 @@
 
 package ru.ckateptb.abilityslots.service;
 
+import lombok.Getter;
 import ru.ckateptb.abilityslots.ability.Ability;
 import ru.ckateptb.abilityslots.ability.enums.AbilityCollisionResult;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
+import ru.ckateptb.abilityslots.collision.CollisionBroadPhase;
+import ru.ckateptb.abilityslots.collision.CollisionMetrics;
+import ru.ckateptb.abilityslots.collision.CollisionNarrowPhase;
+import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 import ru.ckateptb.tablecloth.collision.Collider;
 import ru.ckateptb.tablecloth.ioc.annotation.Autowired;
 import ru.ckateptb.tablecloth.ioc.annotation.Component;
 import ru.ckateptb.tablecloth.ioc.annotation.Scheduled;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 @Component
 public class AbilityCollisionService {
     private final AbilityInstanceService abilityInstanceService;
+    private final AbilityService abilityService;
+    private final AbilitySlotsConfig config;
+    private final ParallelService parallelService;
+    private final List<Ability> candidates = new ArrayList<>();
+    private final List<Ability> participants = new ArrayList<>();
+    // Ability types present this tick and the ones that can destroy or be destroyed by any of them
+    private final BitSet presentTypes = new BitSet();
+    private final List<AbilityInformation> presentInfos = new ArrayList<>();
+    // Types without an ordinal are never filtered out, but they still keep the indexed types they interact with
+    private final List<AbilityInformation> unindexedInfos = new ArrayList<>();
+    private final BitSet interactingTypes = new BitSet();
+    private final CollisionBroadPhase broadPhase = new CollisionBroadPhase();
+    // Participants whose colliders may have changed since the narrow phase snapshot
+    private final BitSet dirty = new BitSet();
+    private final CollisionNarrowPhase narrowPhase = new CollisionNarrowPhase();
+    private final CollisionBroadPhase.PairFilter pairFilter = (first, second) -> canInteract(participants.get(first), participants.get(second));
+    @Getter
+    private final CollisionMetrics metrics = new CollisionMetrics();
+    // Intersection tests performed by the serial fallback
+    private int serialTests;
 
-    public AbilityCollisionService(AbilityInstanceService abilityInstanceService) {
+    public AbilityCollisionService(AbilityInstanceService abilityInstanceService, AbilityService abilityService, AbilitySlotsConfig config, ParallelService parallelService) {
         this.abilityInstanceService = abilityInstanceService;
+        this.abilityService = abilityService;
+        this.config = config;
+        this.parallelService = parallelService;
     }
 
     @Scheduled(period = 1)
     public void update() {
-        Collection<Ability> instances = abilityInstanceService.getInstances().stream()
-                .filter(ability -> ability.getInformation().isCollisionParticipant())
-                .filter(ability -> !ability.getColliders().isEmpty())
-                .collect(Collectors.toList());
-        if (instances.isEmpty()) return;
+        metrics.startTick(abilityService.getGeneration());
+        long time = System.nanoTime();
+        candidates.clear();
+        participants.clear();
+        presentTypes.clear();
+        presentInfos.clear();
+        unindexedInfos.clear();
+        broadPhase.clear();
+        List<Ability> instances = abilityInstanceService.getInstancesView();
+        for (int i = 0, size = instances.size(); i < size; i++) {
+            Ability ability = instances.get(i);
+            AbilityInformation information = ability.getInformation();
+            if (!information.isCollisionParticipant()) continue;
+            if (ability.getColliders().isEmpty()) continue;
+            candidates.add(ability);
+            int ordinal = information.getOrdinal();
+            if (ordinal < 0) {
+                if (!unindexedInfos.contains(information)) unindexedInfos.add(information);
+            } else if (!presentTypes.get(ordinal)) {
+                presentTypes.set(ordinal);
+                presentInfos.add(information);
+            }
+        }
+        collectInteractingTypes();
+        time = recordPhase(CollisionMetrics.Phase.COLLECT, time);
+        // Without the broad phase every box overlaps every other box in the same world
+        double margin = config.isCollisionBroadPhase() ? config.getCollisionBroadPhaseMargin() : Double.POSITIVE_INFINITY;
+        for (int i = 0, size = candidates.size(); i < size; i++) {
+            Ability ability = candidates.get(i);
+            AbilityInformation information = ability.getInformation();
+            int ordinal = information.getOrdinal();
+            if (ordinal >= 0 && !interactingTypes.get(ordinal)) continue;
+            Collection<Collider> colliders = ability.getColliders();
+            if (broadPhase.add(ability.getWorld(), colliders, margin) < 0) continue;
+            participants.add(ability);
+            metrics.recordParticipant(information, colliders.size());
+        }
+        candidates.clear();
+        int size = participants.size();
+        if (size == 0) {
+            recordPhase(CollisionMetrics.Phase.BROAD, time);
+            metrics.finishTick();
+            return;
+        }
+        metrics.recordPairs(broadPhase.sweep(pairFilter), (long) size * (size - 1) / 2);
+        time = recordPhase(CollisionMetrics.Phase.BROAD, time);
+        detectCollisions();
+        time = recordPhase(CollisionMetrics.Phase.NARROW, time);
+        dirty.clear();
         List<Ability> toRemove = new ArrayList<>();
-        for (Ability destroyer : instances) {
-            toRemove.addAll(calculateDestroy(destroyer, instances));
+        for (int i = 0; i < size; i++) {
+            toRemove.addAll(calculateDestroy(i));
         }
         toRemove.forEach(ability -> abilityInstanceService.destroyInstance(ability.getUser(), ability));
+        recordPhase(CollisionMetrics.Phase.RESOLVE, time);
+        metrics.finishTick();
+    }
+
+    private long recordPhase(CollisionMetrics.Phase phase, long start) {
+        long time = System.nanoTime();
+        metrics.recordPhase(phase, time - start);
+        return time;
     }
 
-    private List<Ability> calculateDestroy(Ability destroyer, Collection<Ability> instances) {
+    private void detectCollisions() {
+        int size = participants.size();
+        narrowPhase.prepare(size, broadPhase.getNeighborEnd(size - 1));
+        for (int i = 0; i < size; i++) {
+            narrowPhase.snapshot(i, participants.get(i).getColliders());
+        }
+        for (int i = 0; i < size; i++) {
+            Ability destroyer = participants.get(i);
+            AbilityInformation destroyerInfo = destroyer.getInformation();
+            if (destroyerInfo.getDestroyAbilities().isEmpty()) continue;
+            for (int position = broadPhase.getNeighborStart(i), end = broadPhase.getNeighborEnd(i); position < end; position++) {
+                int targetIndex = broadPhase.getNeighbor(position);
+                Ability target = participants.get(targetIndex);
+                if (destroyer.getUser().equals(target.getUser())) continue;
+                if (!destroyerInfo.canDestroyAbility(target.getInformation())) continue;
+                narrowPhase.request(position, i, targetIndex);
+            }
+        }
+        narrowPhase.detect(config.isCollisionParallelNarrowPhase() ? parallelService.getPool() : null);
+        for (int i = 0; i < size; i++) {
+            AbilityInformation destroyerInfo = participants.get(i).getInformation();
+            for (int position = broadPhase.getNeighborStart(i), end = broadPhase.getNeighborEnd(i); position < end; position++) {
+                if (!narrowPhase.isRequested(position)) continue;
+                metrics.recordTests(destroyerInfo, participants.get(broadPhase.getNeighbor(position)).getInformation(), narrowPhase.getTestCount(position));
+            }
+        }
+    }
+
+    private void collectInteractingTypes() {
+        interactingTypes.clear();
+        for (int i = 0, size = presentInfos.size(); i < size; i++) {
+            AbilityInformation first = presentInfos.get(i);
+            for (int j = i; j < size; j++) {
+                AbilityInformation second = presentInfos.get(j);
+                if (first.canDestroyAbility(second) || second.canDestroyAbility(first)) {
+                    interactingTypes.set(first.getOrdinal());
+                    interactingTypes.set(second.getOrdinal());
+                }
+            }
+            for (int j = 0, unindexed = unindexedInfos.size(); j < unindexed; j++) {
+                AbilityInformation second = unindexedInfos.get(j);
+                if (first.canDestroyAbility(second) || second.canDestroyAbility(first)) {
+                    interactingTypes.set(first.getOrdinal());
+                }
+            }
+        }
+    }
+
+    private boolean canInteract(Ability first, Ability second) {
+        if (first.getUser().equals(second.getUser())) return false;
+        AbilityInformation firstInfo = first.getInformation();
+        AbilityInformation secondInfo = second.getInformation();
+        return firstInfo.canDestroyAbility(secondInfo) || secondInfo.canDestroyAbility(firstInfo);
+    }
+
+    private List<Ability> calculateDestroy(int destroyerIndex) {
         List<Ability> toRemove = new ArrayList<>();
+        Ability destroyer = participants.get(destroyerIndex);
         AbilityInformation destroyerInfo = destroyer.getInformation();
         if (destroyerInfo.getDestroyAbilities().isEmpty()) return toRemove;
 
         boolean isDestroyerDestroyed = false;
 
-        for (Ability target : instances) {
+        for (int position = broadPhase.getNeighborStart(destroyerIndex), end = broadPhase.getNeighborEnd(destroyerIndex); position < end; position++) {
             if (isDestroyerDestroyed) {
                 break;
             }
+            int targetIndex = broadPhase.getNeighbor(position);
+            Ability target = participants.get(targetIndex);
             if (destroyer.getUser().equals(target.getUser())) continue;
 
             AbilityInformation targetInfo = target.getInformation();
@@ -78,12 +216,26 @@ public class AbilityCollisionService {
                 Collection<Collider> targetColliders = target.getColliders();
                 if (targetColliders.isEmpty()) break;
                 int totalColliders = destroyerColliders.size() + targetColliders.size();
-                Map.Entry<Collider, Collider> collisionResult = checkCollision(destroyerColliders, targetColliders);
+                Map.Entry<Collider, Collider> collisionResult;
+                // The precomputed result is only valid until a callback touches one of the pair
+                if (narrowPhase.isRequested(position) && !dirty.get(destroyerIndex) && !dirty.get(targetIndex)) {
+                    Collider destroyerCollider = narrowPhase.getFirstHit(position);
+                    collisionResult = destroyerCollider == null ? null : Map.entry(destroyerCollider, narrowPhase.getSecondHit(position));
+                } else {
+                    serialTests = 0;
+                    collisionResult = checkCollision(destroyerColliders, targetColliders);
+                    metrics.recordTests(destroyerInfo, targetInfo, serialTests);
+                }
                 if (collisionResult == null) break;
+                metrics.recordHit(destroyerInfo, targetInfo);
+                dirty.set(destroyerIndex);
+                dirty.set(targetIndex);
+                metrics.recordCallback(targetInfo);
                 if (target.destroyCollider(destroyer, collisionResult.getKey(), collisionResult.getValue()) == AbilityCollisionResult.DESTROY_INSTANCE) {
                     isTargetDestroyed = true;
                 }
                 if (collideDestroyer) {
+                    metrics.recordCallback(destroyerInfo);
                     if (destroyer.destroyCollider(target, collisionResult.getValue(), collisionResult.getKey()) == AbilityCollisionResult.DESTROY_INSTANCE) {
                         isDestroyerDestroyed = true;
                     }
@@ -107,6 +259,7 @@ public class AbilityCollisionService {
             if (firstCollider == null) continue;
             for (Collider secondCollider : secondColliders) {
                 if (secondCollider == null) continue;
+                serialTests++;
                 if (firstCollider.intersects(secondCollider)) {
                     return Map.entry(firstCollider, secondCollider);
                 }
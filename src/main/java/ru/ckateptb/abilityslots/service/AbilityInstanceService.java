@@ -17,6 +17,7 @@
 
 package ru.ckateptb.abilityslots.service;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -24,10 +25,13 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.server.PluginDisableEvent;
 import ru.ckateptb.abilityslots.AbilitySlots;
 import ru.ckateptb.abilityslots.ability.Ability;
+import ru.ckateptb.abilityslots.ability.AbilityComputePhase;
+import ru.ckateptb.abilityslots.ability.AbilityInstanceRegistry;
 import ru.ckateptb.abilityslots.ability.enums.ActivateResult;
 import ru.ckateptb.abilityslots.ability.enums.ActivationMethod;
 import ru.ckateptb.abilityslots.ability.enums.UpdateResult;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
+import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 import ru.ckateptb.abilityslots.event.AbilitySlotsReloadEvent;
 import ru.ckateptb.abilityslots.user.AbilityUser;
 import ru.ckateptb.tablecloth.ioc.annotation.Autowired;
@@ -35,62 +39,132 @@ import ru.ckateptb.tablecloth.ioc.annotation.Component;
 import ru.ckateptb.tablecloth.ioc.annotation.Scheduled;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Component
 @Slf4j
 public class AbilityInstanceService implements Listener {
-    private final Map<AbilityUser, List<Ability>> instances = new HashMap<>();
+    private static final int COMPUTE_WINDOW = 256;
+    private final AbilityInstanceRegistry registry = new AbilityInstanceRegistry();
     private final AbilityService abilityService;
+    private final AbilitySlotsConfig config;
+    private final ParallelService parallelService;
+    private final List<Ability> removed = new ArrayList<>();
+    // Users that lost a passive instance, drained by AbilityUserService
+    private final Set<AbilityUser> passiveLosses = new LinkedHashSet<>();
+    private Ability[] updateBuffer = new Ability[64];
+    private final AbilityComputePhase computePhase = new AbilityComputePhase();
+    private int deferredCount = 0;
+    private long currentTick = 0;
+    // Number of instances that did not fit into the update budget on the last tick
+    @Getter
+    private int lastDeferredCount = 0;
+    @Getter
+    private long totalDeferredCount = 0;
 
-    public AbilityInstanceService(AbilityService abilityService) {
+    public AbilityInstanceService(AbilityService abilityService, AbilitySlotsConfig config, ParallelService parallelService) {
         this.abilityService = abilityService;
+        this.config = config;
+        this.parallelService = parallelService;
     }
 
     public void registerInstance(AbilityUser user, Ability instance) {
-        instances.computeIfAbsent(user, (key) -> new ArrayList<>()).add(instance);
+        registry.register(user, instance);
     }
 
     @Scheduled(period = 1)
     public void update() {
-        Iterator<Map.Entry<AbilityUser, List<Ability>>> playerIterator = instances.entrySet().iterator();
-        List<Ability> removed = new ArrayList<>();
-        while (playerIterator.hasNext()) {
-            Map.Entry<AbilityUser, List<Ability>> entry = playerIterator.next();
-            List<Ability> instances = entry.getValue();
-            Iterator<Ability> iterator = instances.iterator();
-            while (iterator.hasNext()) {
-                Ability ability = iterator.next();
-                UpdateResult result = UpdateResult.REMOVE;
+        long tick = ++this.currentTick;
+        int capacity = registry.size();
+        if (capacity == 0) {
+            Arrays.fill(updateBuffer, 0, deferredCount, null);
+            this.deferredCount = 0;
+            this.lastDeferredCount = 0;
+            return;
+        }
+        if (updateBuffer.length < capacity) {
+            updateBuffer = Arrays.copyOf(updateBuffer, Math.max(capacity, updateBuffer.length << 1));
+        }
+        // Instances may register or destroy other instances while updating, so iterate over a stable queue.
+        // Instances deferred on the previous tick stay at the head of the queue and are updated first.
+        Ability[] queue = updateBuffer;
+        int carried = 0;
+        for (int i = 0; i < deferredCount; i++) {
+            Ability ability = queue[i];
+            queue[i] = null;
+            if (registry.contains(ability)) {
+                queue[carried++] = ability;
+            }
+        }
+        int size = registry.collectDue(tick, queue, carried);
+        ForkJoinPool pool = config.isUpdateParallelCompute() ? parallelService.getPool() : null;
+        long budget = TimeUnit.MILLISECONDS.toNanos(config.getUpdateBudget());
+        long start = System.nanoTime();
+        int processed = 0;
+        int computed = 0;
+        while (processed < size) {
+            // At least one instance is always updated, so a single slow ability can't stall the queue
+            if (budget > 0 && processed > 0 && System.nanoTime() - start >= budget) break;
+            // Compute in windows, so the compute phase counts against the budget and deferred instances are skipped
+            if (processed == computed) {
+                computed = Math.min(size, processed + COMPUTE_WINDOW);
+                computePhase.compute(pool, queue, processed, computed);
+            }
+            Ability ability = queue[processed];
+            queue[processed++] = null;
+            // The instance may have been destroyed by another instance during this tick
+            if (!registry.contains(ability)) continue;
+            UpdateResult result = UpdateResult.REMOVE;
+            if (computePhase.complete(ability)) {
                 try {
                     result = ability.update();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
-                if (result == UpdateResult.REMOVE) {
-                    removed.add(ability);
-                    iterator.remove();
-                }
             }
-            if (entry.getValue().isEmpty()) {
-                playerIterator.remove();
+            if (result == UpdateResult.REMOVE) {
+                removed.add(ability);
+                registry.unregister(ability);
             }
         }
-        removed.forEach(this::destroyInstance);
+        int deferred = size - processed;
+        if (deferred > 0) {
+            System.arraycopy(queue, processed, queue, 0, deferred);
+            Arrays.fill(queue, deferred, size, null);
+        }
+        this.deferredCount = deferred;
+        this.lastDeferredCount = deferred;
+        this.totalDeferredCount += deferred;
+        for (Ability ability : removed) {
+            destroyInstance(ability);
+        }
+        removed.clear();
     }
 
     private void destroyInstance(Ability ability) {
         ability.destroy();
+        if (ability.getInformation().isActivatedBy(ActivationMethod.PASSIVE)) {
+            passiveLosses.add(ability.getUser());
+        }
+    }
+
+    /**
+     * Passes every user that lost a passive instance since the last call to the consumer.
+     */
+    public void drainPassiveLosses(Consumer<AbilityUser> consumer) {
+        if (passiveLosses.isEmpty()) return;
+        AbilityUser[] users = passiveLosses.toArray(new AbilityUser[0]);
+        passiveLosses.clear();
+        for (AbilityUser user : users) {
+            consumer.accept(user);
+        }
     }
 
     public void changeOwner(Ability ability, AbilityUser user) {
         if (ability.getUser().equals(user)) return;
-
-        List<Ability> previousUserInstances = instances.get(ability.getUser());
-        if (previousUserInstances != null) {
-            previousUserInstances.remove(ability);
-        }
-        instances.computeIfAbsent(user, k -> new ArrayList<>()).add(ability);
+        registry.changeOwner(ability, user);
         ability.setUser(user);
     }
 
@@ -110,7 +184,7 @@ public class AbilityInstanceService implements Listener {
     }
 
     public void clearPassives(AbilityUser user) {
-        List<Ability> abilities = new ArrayList<>(getAbilityUserInstances(user));
+        List<Ability> abilities = getAbilityUserInstances(user);
         for (Ability instance : abilities) {
             if (instance.getInformation().isActivatedBy(ActivationMethod.PASSIVE)) {
                 this.destroyInstance(user, instance);
@@ -119,14 +193,7 @@ public class AbilityInstanceService implements Listener {
     }
 
     public boolean hasAbility(AbilityUser user, Class<? extends Ability> abilityType) {
-        List<Ability> abilities = instances.get(user);
-        if (abilities == null) return false;
-        for (Ability ability : abilities) {
-            if (ability.getClass().equals(abilityType)) {
-                return true;
-            }
-        }
-        return false;
+        return !registry.getInstances(user, abilityType).isEmpty();
     }
 
     public boolean hasAbility(AbilityUser user, AbilityInformation information) {
@@ -134,11 +201,10 @@ public class AbilityInstanceService implements Listener {
     }
 
     public void destroyInstance(AbilityUser user, Ability ability) {
-        List<Ability> abilities = instances.get(user);
         if (ability == null) {
             return;
         }
-        abilities.remove(ability);
+        registry.unregister(ability);
         destroyInstance(ability);
     }
 
@@ -148,84 +214,88 @@ public class AbilityInstanceService implements Listener {
     }
 
     public boolean destroyInstanceType(AbilityUser user, Class<? extends Ability> clazz) {
-        List<Ability> abilities = instances.get(user);
-        if (abilities == null) return false;
+        List<Ability> abilities = registry.getInstances(user, clazz);
         boolean destroyed = false;
-        for (Iterator<Ability> iterator = abilities.iterator(); iterator.hasNext(); ) {
-            Ability ability = iterator.next();
-            if (ability.getClass() == clazz) {
-                iterator.remove();
-                destroyInstance(ability);
-                destroyed = true;
-            }
+        // Swap-remove only moves the last element, so walking backwards visits every instance once
+        for (int i = abilities.size() - 1; i >= 0; i--) {
+            if (i >= abilities.size()) continue;
+            Ability ability = abilities.get(i);
+            registry.unregister(ability);
+            destroyInstance(ability);
+            destroyed = true;
         }
         return destroyed;
     }
 
     // Get the number of active abilities.
     public int getInstanceCount() {
-        int size = 0;
-        for (List<Ability> instances : instances.values()) {
-            size += instances.size();
-        }
-        return size;
+        return registry.size();
     }
 
     public List<Ability> getAbilityUserInstances(AbilityUser user) {
-        List<Ability> abilities = instances.get(user);
-        if (abilities == null) return new ArrayList<>();
-        return abilities;
+        return new ArrayList<>(registry.getInstances(user));
+    }
+
+    /**
+     * @return live read-only view of the user instances, must not be iterated while instances are destroyed
+     */
+    public List<Ability> getAbilityUserInstancesView(AbilityUser user) {
+        return registry.getInstances(user);
     }
 
     @SuppressWarnings("unchecked")
     public <T extends Ability> List<T> getAbilityUserInstances(AbilityUser user, Class<T> type) {
-        List<Ability> abilities = instances.get(user);
-        if (abilities == null) return new ArrayList<>();
-        return abilities.stream().filter(a -> a.getClass() == type).map(a -> (T) a).collect(Collectors.toList());
+        return new ArrayList<>((List<T>) (List<?>) registry.getInstances(user, type));
+    }
+
+    /**
+     * @return live read-only view of the user instances of exactly this class
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Ability> List<T> getAbilityUserInstancesView(AbilityUser user, Class<T> type) {
+        return (List<T>) (List<?>) registry.getInstances(user, type);
     }
 
     public List<Ability> getInstances() {
-        List<Ability> totalInstances = new ArrayList<>();
-        for (List<Ability> instances : instances.values()) {
-            totalInstances.addAll(instances);
-        }
-        return totalInstances;
+        return new ArrayList<>(registry.getInstances());
+    }
+
+    /**
+     * @return live read-only view of all instances, must not be iterated while instances are destroyed
+     */
+    public List<Ability> getInstancesView() {
+        return registry.getInstances();
     }
 
     @SuppressWarnings("unchecked")
     public <T extends Ability> List<T> getInstances(Class<T> type) {
-        List<T> totalInstances = new ArrayList<>();
-        for (List<Ability> instances : instances.values()) {
-            for (Ability ability : instances) {
-                if (ability.getClass().equals(type)) {
-                    totalInstances.add((T) ability);
-                }
-            }
-        }
-        return totalInstances;
+        return new ArrayList<>((List<T>) (List<?>) registry.getInstances(type));
+    }
+
+    /**
+     * @return live read-only view of all instances of exactly this class
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Ability> List<T> getInstancesView(Class<T> type) {
+        return (List<T>) (List<?>) registry.getInstances(type);
     }
 
     public void destroyAbilityUserInstances(AbilityUser user) {
-        List<Ability> instances = this.instances.get(user);
-        if (instances != null) {
-            for (Ability ability : instances) {
-                destroyInstance(ability);
-            }
-            instances.clear();
+        List<Ability> instances = registry.getInstances(user);
+        for (int i = instances.size() - 1; i >= 0; i--) {
+            if (i >= instances.size()) continue;
+            Ability ability = instances.get(i);
+            registry.unregister(ability);
+            destroyInstance(ability);
         }
-        this.instances.remove(user);
+        registry.removeUser(user);
     }
 
     public void destroyAllInstances() {
-        Iterator<Map.Entry<AbilityUser, List<Ability>>> playerIterator = instances.entrySet().iterator();
-        while (playerIterator.hasNext()) {
-            Map.Entry<AbilityUser, List<Ability>> entry = playerIterator.next();
-            List<Ability> instances = entry.getValue();
-            for (Ability ability : instances) {
-                destroyInstance(ability);
-            }
-            instances.clear();
-            playerIterator.remove();
+        List<Ability> instances = new ArrayList<>(registry.getInstances());
+        registry.clear();
+        for (Ability ability : instances) {
+            destroyInstance(ability);
         }
     }
 
@@ -17,9 +17,14 @@
 
 package ru.ckateptb.abilityslots.service;
 
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import ru.ckateptb.abilityslots.ability.Ability;
 import ru.ckateptb.abilityslots.ability.enums.ActivateResult;
 import ru.ckateptb.abilityslots.ability.enums.ActivationMethod;
@@ -27,26 +32,32 @@ import ru.ckateptb.abilityslots.ability.enums.SequenceAction;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
 import ru.ckateptb.abilityslots.ability.sequence.AbilityAction;
 import ru.ckateptb.abilityslots.ability.sequence.Sequence;
+import ru.ckateptb.abilityslots.ability.sequence.SequenceMatcher;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 import ru.ckateptb.abilityslots.event.AbilitySlotsReloadEvent;
 import ru.ckateptb.abilityslots.user.AbilityUser;
 import ru.ckateptb.tablecloth.ioc.annotation.Autowired;
 import ru.ckateptb.tablecloth.ioc.annotation.Component;
 
-import java.lang.annotation.Annotation;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
 
 @Component
 public class AbilitySequenceService implements Listener {
-    private final Map<AbilityInformation, List<AbilityAction>> sequences = new HashMap<>();
-    private final Map<AbilityUser, List<AbilityAction>> userActions = new HashMap<>();
+    private static final SequenceAction[] ACTIONS = SequenceAction.values();
+    private final Map<AbilityInformation, List<AbilityAction>> sequences = new LinkedHashMap<>();
+    private final Map<UUID, ActionHistory> userActions = new HashMap<>();
     private final AbilityInstanceService abilityInstanceService;
+    private final AbilityService abilityService;
+    private final ClockService clock;
     private final AbilitySlotsConfig config;
+    private SequenceMatcher matcher;
+    private int matcherVersion = 0;
     private int maxSize = 0;
 
-    public AbilitySequenceService(AbilityInstanceService abilityInstanceService, AbilitySlotsConfig config) {
+    public AbilitySequenceService(AbilityInstanceService abilityInstanceService, AbilityService abilityService, ClockService clock, AbilitySlotsConfig config) {
         this.abilityInstanceService = abilityInstanceService;
+        this.abilityService = abilityService;
+        this.clock = clock;
         this.config = config;
     }
 
@@ -54,43 +65,81 @@ public class AbilitySequenceService implements Listener {
         List<AbilityAction> abilityActions = Arrays.asList(sequence.value());
         maxSize = Math.max(maxSize, abilityActions.size());
         sequences.put(information, abilityActions);
+        matcher = null;
     }
 
     public ActivateResult registerAction(AbilityUser user, SequenceAction sequenceAction) {
         AbilityInformation information = user.getSelectedAbility();
         if (information == null) return ActivateResult.NOT_ACTIVATE;
 
-        AbilityAction abilityAction = this.createAbilityAction(information, sequenceAction);
-        List<AbilityAction> actions = userActions.getOrDefault(user, new ArrayList<>());
+        long tick = clock.getTick();
+        long timeout = config.getSequenceTimeout();
+        ActionHistory actions = userActions.computeIfAbsent(user.getEntity().getUniqueId(), key -> new ActionHistory());
+        if (timeout > 0 && !actions.isEmpty() && tick - actions.tick(0) > timeout) {
+            // every partial match ends with the last action, so none of them can complete anymore
+            actions.clear();
+        }
         // In 1.17.1 PlayerAnimationEvent call multiple (its crutch but can fix it)
         if (!actions.isEmpty() && (sequenceAction == SequenceAction.LEFT_CLICK_BLOCK
                 || sequenceAction == SequenceAction.LEFT_CLICK_ENTITY
                 || sequenceAction == SequenceAction.LEFT_CLICK)
-                && sequenceAction == actions.get(actions.size() - 1).action()
-                && information.getAbilityClass() == actions.get(actions.size() - 1).ability()) {
+                && sequenceAction.ordinal() == actions.action(0)
+                && actions.isAbility(0, information)) {
             return ActivateResult.NOT_ACTIVATE;
         }
-        actions.add(abilityAction);
+        actions.add(information, sequenceAction, tick, maxSize);
         if (config.isSequenceDebug()) {
-            user.getEntity().sendMessage(String.format("%s > %s", abilityAction.ability().getSimpleName(), abilityAction.action().name()));
-        }
-        if (actions.size() > maxSize) actions.remove(0);
-        userActions.put(user, actions);
-
-
-        AtomicReference<ActivateResult> result = new AtomicReference<>(ActivateResult.NOT_ACTIVATE);
-        sequences.forEach((key, value) -> {
-            if (tailMatches(actions, value) && user.canActivate(key)) {
-                Ability instance = key.createAbility();
-                instance.setUser(user);
-                ActivateResult activateResult = instance.activate(ActivationMethod.SEQUENCE);
-                if (activateResult == ActivateResult.ACTIVATE) {
-                    result.set(activateResult);
-                    abilityInstanceService.registerInstance(user, instance);
-                }
+            user.getEntity().sendMessage(String.format("%s > %s", information.getAbilityClass().getSimpleName(), sequenceAction.name()));
+        }
+
+        SequenceMatcher matcher = getMatcher();
+        if (actions.version != matcherVersion) {
+            replay(actions, matcher);
+        } else {
+            actions.state = matcher.next(actions.state, information.getAbilityClass(), sequenceAction);
+        }
+
+        ActivateResult result = ActivateResult.NOT_ACTIVATE;
+        AbilityInformation[] matches = matcher.getMatches(actions.state);
+        int[] lengths = matcher.getMatchLengths(actions.state);
+        for (int i = 0; i < matches.length; i++) {
+            int length = lengths[i];
+            if (length > actions.size) continue;
+            if (timeout > 0 && tick - actions.tick(length - 1) > timeout) continue;
+            AbilityInformation key = matches[i];
+            if (!user.canActivate(key)) continue;
+            Ability instance = key.createAbility();
+            instance.setUser(user);
+            ActivateResult activateResult = instance.activate(ActivationMethod.SEQUENCE);
+            if (activateResult == ActivateResult.ACTIVATE) {
+                result = activateResult;
+                abilityInstanceService.registerInstance(user, instance);
             }
-        });
-        return result.get();
+        }
+        return result;
+    }
+
+    private void replay(ActionHistory actions, SequenceMatcher matcher) {
+        int state = SequenceMatcher.START;
+        for (int back = actions.size - 1; back >= 0; back--) {
+            int ordinal = actions.ability(back);
+            AbilityInformation information = ordinal < 0 ? actions.information(back) : abilityService.getAbility(ordinal);
+            if (information == null) {
+                state = SequenceMatcher.START;
+                continue;
+            }
+            state = matcher.next(state, information.getAbilityClass(), ACTIONS[actions.action(back)]);
+        }
+        actions.state = state;
+        actions.version = matcherVersion;
+    }
+
+    private SequenceMatcher getMatcher() {
+        if (matcher == null) {
+            matcher = new SequenceMatcher(sequences);
+            matcherVersion++;
+        }
+        return matcher;
     }
 
     public boolean tailMatches(List<AbilityAction> list, List<AbilityAction> tail) {
@@ -115,29 +164,119 @@ public class AbilitySequenceService implements Listener {
         return action.ability() == other.ability() && other.action().equals(action.action());
     }
 
-    private AbilityAction createAbilityAction(AbilityInformation information, SequenceAction sequenceAction) {
-        return new AbilityAction() {
-            @Override
-            public Class<? extends Annotation> annotationType() {
-                return AbilityAction.class;
-            }
-
-            @Override
-            public Class<? extends Ability> ability() {
-                return information.getAbilityClass();
-            }
-
-            @Override
-            public SequenceAction action() {
-                return sequenceAction;
-            }
-        };
-    }
-
     @EventHandler(priority = EventPriority.NORMAL)
     public void on(AbilitySlotsReloadEvent event) {
         this.sequences.clear();
         this.userActions.clear();
+        this.matcher = null;
         this.maxSize = 0;
     }
+
+    @EventHandler
+    public void on(PlayerQuitEvent event) {
+        this.userActions.remove(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler
+    public void on(EntityRemoveFromWorldEvent event) {
+        if (event.getEntity() instanceof LivingEntity entity && !(entity instanceof Player)) {
+            this.userActions.remove(entity.getUniqueId());
+        }
+    }
+
+    @EventHandler
+    public void on(EntityDeathEvent event) {
+        if (!(event.getEntity() instanceof Player)) {
+            this.userActions.remove(event.getEntity().getUniqueId());
+        }
+    }
+
+    /**
+     * The last actions of a user in a fixed ring of primitives: ability ordinal, action ordinal and the tick it was
+     * performed at. Positions are counted back from the most recent action. Abilities without an ordinal are kept
+     * by reference instead.
+     */
+    private static final class ActionHistory {
+        private int[] abilities = new int[0];
+        private AbilityInformation[] unindexed = new AbilityInformation[0];
+        private byte[] actions = new byte[0];
+        private long[] ticks = new long[0];
+        private int head = 0;
+        private int size = 0;
+        private int state = SequenceMatcher.START;
+        private int version = 0;
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private int slot(int back) {
+            return (head + size - 1 - back) % abilities.length;
+        }
+
+        private int ability(int back) {
+            return abilities[slot(back)];
+        }
+
+        private AbilityInformation information(int back) {
+            return unindexed[slot(back)];
+        }
+
+        private boolean isAbility(int back, AbilityInformation information) {
+            int ordinal = information.getOrdinal();
+            return ordinal < 0 ? unindexed[slot(back)] == information : abilities[slot(back)] == ordinal;
+        }
+
+        private int action(int back) {
+            return actions[slot(back)];
+        }
+
+        private long tick(int back) {
+            return ticks[slot(back)];
+        }
+
+        private void add(AbilityInformation information, SequenceAction action, long tick, int capacity) {
+            if (capacity == 0) return;
+            if (capacity != abilities.length) resize(capacity);
+            int slot = (head + size) % capacity;
+            int ordinal = information.getOrdinal();
+            abilities[slot] = ordinal;
+            unindexed[slot] = ordinal < 0 ? information : null;
+            actions[slot] = (byte) action.ordinal();
+            ticks[slot] = tick;
+            if (size == capacity) {
+                head = (head + 1) % capacity;
+            } else {
+                size++;
+            }
+        }
+
+        private void clear() {
+            Arrays.fill(unindexed, null);
+            head = 0;
+            size = 0;
+            state = SequenceMatcher.START;
+        }
+
+        private void resize(int capacity) {
+            int[] abilities = new int[capacity];
+            AbilityInformation[] unindexed = new AbilityInformation[capacity];
+            byte[] actions = new byte[capacity];
+            long[] ticks = new long[capacity];
+            int kept = Math.min(size, capacity);
+            for (int i = 0; i < kept; i++) {
+                int slot = slot(kept - 1 - i);
+                abilities[i] = this.abilities[slot];
+                unindexed[i] = this.unindexed[slot];
+                actions[i] = this.actions[slot];
+                ticks[i] = this.ticks[slot];
+            }
+            this.abilities = abilities;
+            this.unindexed = unindexed;
+            this.actions = actions;
+            this.ticks = ticks;
+            this.head = 0;
+            this.size = kept;
+        }
+    }
 }
@@ -17,6 +17,7 @@
 
 package ru.ckateptb.abilityslots.service;
 
+import lombok.Getter;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -25,18 +26,40 @@ import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
 import ru.ckateptb.abilityslots.event.AbilitySlotsReloadEvent;
 import ru.ckateptb.tablecloth.ioc.annotation.Component;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Component
 public class AbilityService implements Listener {
     private final Map<String, AbilityInformation> abilities = new HashMap<>();
     private final Map<String, AbilityInformation> passives = new HashMap<>();
+    // Dense index by AbilityInformation#getOrdinal, stable until the next reload
+    private final List<AbilityInformation> ordinals = new ArrayList<>();
+    // Incremented on every reload, lets instances detect stale AbilityInformation bindings
+    @Getter
+    private int generation = 0;
 
     public void registerAbility(AbilityInformation ability) {
         String name = ability.getName().toLowerCase();
+        AbilityInformation previous = abilities.get(name);
+        if (previous != null) {
+            passives.remove(name);
+        }
+        if (previous != ability) {
+            int ordinal = previous != null && previous.getOrdinal() >= 0 ? previous.getOrdinal() : ordinals.size();
+            ability.setOrdinal(ordinal);
+            // Implementations without ordinal support stay unindexed
+            AbilityInformation indexed = ability.getOrdinal() == ordinal ? ability : null;
+            if (ordinal == ordinals.size()) {
+                if (indexed != null) ordinals.add(indexed);
+            } else {
+                ordinals.set(ordinal, indexed);
+            }
+        }
         if (ability.isActivatedBy(ActivationMethod.PASSIVE)) {
             passives.put(name, ability);
         }
@@ -48,6 +71,15 @@ public class AbilityService implements Listener {
         return abilities.get(name.toLowerCase());
     }
 
+    public AbilityInformation getAbility(int ordinal) {
+        if (ordinal < 0 || ordinal >= ordinals.size()) return null;
+        return ordinals.get(ordinal);
+    }
+
+    public int getAbilityCount() {
+        return ordinals.size();
+    }
+
     public Collection<AbilityInformation> getAbilities() {
         return Collections.unmodifiableCollection(abilities.values());
     }
@@ -60,5 +92,7 @@ public class AbilityService implements Listener {
     public void on(AbilitySlotsReloadEvent event) {
         this.abilities.clear();
         this.passives.clear();
+        this.ordinals.clear();
+        this.generation++;
     }
 }
@@ -19,14 +19,19 @@ package ru.ckateptb.abilityslots.service;
 
 import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
 import lombok.SneakyThrows;
+import org.bukkit.Bukkit;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerCommandSendEvent;
+import org.bukkit.event.player.PlayerGameModeChangeEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
 import ru.ckateptb.abilityslots.ability.Ability;
 import ru.ckateptb.abilityslots.ability.enums.ActivateResult;
 import ru.ckateptb.abilityslots.ability.enums.ActivationMethod;
@@ -43,23 +48,40 @@ import ru.ckateptb.tablecloth.ioc.annotation.Component;
 import ru.ckateptb.tablecloth.ioc.annotation.Scheduled;
 
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 @Component
 public class AbilityUserService implements Listener {
+    private static final long PASSIVE_RESTORE_DELAY = 20;
     private final ExecutorService executorService = Executors.newFixedThreadPool(1);
-    private final Map<LivingEntity, AbilityUser> users = new HashMap<>();
+    // Mutated on the main thread only, readers on other threads use the snapshot
+    private final Map<UUID, AbilityUser> users = new ConcurrentHashMap<>();
+    private volatile List<AbilityUser> snapshot = List.of();
+    private final Runnable asyncUpdate = this::updateAsync;
     private final AbilitySlotsStorage storage;
     private final AbilitySlotsConfig config;
     private final AbilityService abilityService;
     private final AbilityInstanceService abilityInstanceService;
     private final AsyncService asyncService;
     private final ProtectionService protectionService;
+    // Users whose passives are reconciled on the next tick
+    private final Set<AbilityUser> dirtyUsers = new LinkedHashSet<>();
+    private final PriorityQueue<PendingReconcile> pending = new PriorityQueue<>();
+    // Users that lost a passive and are re-checked until it is restored
+    private final Set<AbilityUser> restoringUsers = new HashSet<>();
+    private final Sweep passiveSweep = new Sweep();
+    private final Sweep permissionSweep = new Sweep();
+    private long currentTick = 0;
 
     public AbilityUserService(AbilitySlotsStorage storage, AbilitySlotsConfig config, AbilityService abilityService, AbilityInstanceService abilityInstanceService, AsyncService asyncService, ProtectionService protectionService) {
         this.storage = storage;
@@ -68,59 +90,165 @@ public class AbilityUserService implements Listener {
         this.abilityInstanceService = abilityInstanceService;
         this.asyncService = asyncService;
         this.protectionService = protectionService;
+        if (Bukkit.getPluginManager().getPlugin("LuckPerms") != null) {
+            new LuckPermsPermissionListener(this);
+        }
     }
 
     public PlayerAbilityUser getAbilityPlayer(Player player) {
-        AbilityUser abilityUser = users.get(player);
+        AbilityUser abilityUser = users.get(player.getUniqueId());
         if (abilityUser == null) {
             PlayerAbilityUser user = new PlayerAbilityUser(player, config, abilityService, abilityInstanceService, storage, asyncService, protectionService);
             user.enableAbilityBoard();
             user.enableEnergyBar();
-            users.put(player, user);
+            users.put(player.getUniqueId(), user);
+            updateSnapshot();
             return user;
         }
         return (PlayerAbilityUser) abilityUser;
     }
 
     public AbilityUser getAbilityUser(LivingEntity livingEntity) {
-        return users.get(livingEntity);
+        return users.get(livingEntity.getUniqueId());
+    }
+
+    /**
+     * @return immutable snapshot of all users, safe to iterate from any thread
+     */
+    public List<AbilityUser> getUsers() {
+        return snapshot;
+    }
+
+    private AbilityUser removeUser(LivingEntity entity) {
+        AbilityUser user = users.remove(entity.getUniqueId());
+        if (user != null) {
+            updateSnapshot();
+        }
+        return user;
+    }
+
+    private void updateSnapshot() {
+        this.snapshot = List.copyOf(users.values());
     }
 
     @Scheduled(delay = 5, period = 1)
     public void update() {
-        CompletableFuture.runAsync(() -> new CopyOnWriteArrayList<>(users.values()).forEach(abilityUser -> {
-            if (abilityUser instanceof PlayerAbilityUser user) {
+        executorService.execute(asyncUpdate);
+    }
+
+    private void updateAsync() {
+        List<AbilityUser> users = this.snapshot;
+        for (int i = 0, size = users.size(); i < size; i++) {
+            if (users.get(i) instanceof PlayerAbilityUser user) {
                 user.updateAbilityBoard();
                 user.updateEnergyBar();
             }
-        }), executorService);
+        }
     }
 
-    @Scheduled(period = 20)
+    /**
+     * Reconcile passives of the user on the next tick.
+     */
+    public void markDirty(AbilityUser user) {
+        dirtyUsers.add(user);
+    }
+
+    /**
+     * Reconcile passives of the user after the specified number of ticks.
+     */
+    public void markDirty(AbilityUser user, long delay) {
+        if (delay <= 0) {
+            markDirty(user);
+            return;
+        }
+        pending.add(new PendingReconcile(currentTick + delay, user));
+    }
+
+    public void markAllDirty() {
+        dirtyUsers.addAll(snapshot);
+    }
+
+    @Scheduled(period = 1)
     public void updatePassives() {
+        long tick = ++this.currentTick;
+        // A lost passive is re-checked with the same delay as the former periodic scan until it is restored
+        abilityInstanceService.drainPassiveLosses(user -> {
+            restoringUsers.add(user);
+            markDirty(user, PASSIVE_RESTORE_DELAY);
+        });
+        while (!pending.isEmpty() && pending.peek().tick() <= tick) {
+            dirtyUsers.add(pending.poll().user());
+        }
+        refreshPermissions();
+        sweepPassives();
+        if (dirtyUsers.isEmpty()) return;
+        AbilityUser[] batch = dirtyUsers.toArray(new AbilityUser[0]);
+        dirtyUsers.clear();
+        for (AbilityUser user : batch) {
+            // Skip users that left since they were marked
+            if (users.get(user.getEntity().getUniqueId()) != user) {
+                restoringUsers.remove(user);
+                continue;
+            }
+            reconcilePassives(user);
+            if (restoringUsers.contains(user)) {
+                if (isMissingPassive(user)) {
+                    markDirty(user, PASSIVE_RESTORE_DELAY);
+                } else {
+                    restoringUsers.remove(user);
+                }
+            }
+        }
+    }
+
+    private boolean isMissingPassive(AbilityUser user) {
+        for (AbilityInformation passive : abilityService.getPassiveAbilities()) {
+            if (passive.isEnabled() && passive.getCategory().isEnabled() && user.hasPermission(passive)
+                    && !abilityInstanceService.hasAbility(user, passive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void reconcilePassives(AbilityUser user) {
         Collection<AbilityInformation> passives = abilityService.getPassiveAbilities();
         for (AbilityInformation passive : passives) {
-            for (AbilityUser user : users.values()) {
-                if (passive.isEnabled() && user.canActivate(passive)) {
-                    if (!abilityInstanceService.hasAbility(user, passive)) {
-                        Ability ability = passive.createAbility();
-                        ability.setUser(user);
-                        ActivateResult activateResult = ability.activate(ActivationMethod.PASSIVE);
-                        if (activateResult == ActivateResult.ACTIVATE) {
-                            abilityInstanceService.registerInstance(user, ability);
-                        }
+            if (passive.isEnabled() && user.canActivate(passive)) {
+                if (!abilityInstanceService.hasAbility(user, passive)) {
+                    Ability ability = passive.createAbility();
+                    ability.setUser(user);
+                    ActivateResult activateResult = ability.activate(ActivationMethod.PASSIVE);
+                    if (activateResult == ActivateResult.ACTIVATE) {
+                        abilityInstanceService.registerInstance(user, ability);
                     }
-                } else if (abilityInstanceService.hasAbility(user, passive)) {
-                    abilityInstanceService.destroyInstanceType(user, passive);
                 }
+            } else if (abilityInstanceService.hasAbility(user, passive)) {
+                abilityInstanceService.destroyInstanceType(user, passive);
             }
         }
     }
 
+    private void sweepPassives() {
+        passiveSweep.advance(snapshot, config.getPassiveSweepPeriod(), dirtyUsers::add);
+    }
+
+    private void refreshPermissions() {
+        // Bounds the staleness after permission changes of plugins without a hook that do not resend the command tree
+        permissionSweep.advance(snapshot, config.getPermissionRefreshPeriod(), user -> {
+            if (user instanceof PlayerAbilityUser player) {
+                player.invalidatePermissionCache();
+                dirtyUsers.add(user);
+            }
+        });
+    }
+
     @Scheduled(period = 20)
     public void regenEnergy() {
         if (config.getCastPreventType() == AbilityCastPreventType.COOLDOWN) return;
-        for (AbilityUser user : users.values()) {
+        List<AbilityUser> users = this.snapshot;
+        for (int i = 0, size = users.size(); i < size; i++) {
+            AbilityUser user = users.get(i);
             user.addEnergy(config.getEnergyRegen());
         }
     }
@@ -131,9 +259,64 @@ public class AbilityUserService implements Listener {
         getAbilityPlayer(event.getPlayer());
     }
 
+    @EventHandler
+    public void on(PlayerChangedWorldEvent event) {
+        // Permissions may be defined per world
+        invalidatePermissions(event.getPlayer());
+        markDirty(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(PlayerGameModeChangeEvent event) {
+        // Called before the gamemode is changed, the reconciliation happens on the next tick
+        markDirty(event.getPlayer());
+    }
+
+    @EventHandler
+    public void on(PlayerRespawnEvent event) {
+        markDirty(event.getPlayer());
+    }
+
+    @EventHandler
+    public void on(PlayerCommandSendEvent event) {
+        // Permission plugins resend the command tree after recalculating permissions
+        invalidatePermissions(event.getPlayer());
+        markDirty(event.getPlayer());
+    }
+
+    private void invalidatePermissions(Player player) {
+        if (users.get(player.getUniqueId()) instanceof PlayerAbilityUser user) {
+            user.invalidatePermissionCache();
+        }
+    }
+
+    void invalidatePermissions(UUID uuid) {
+        if (users.get(uuid) instanceof PlayerAbilityUser user) {
+            user.invalidatePermissionCache();
+            markDirty(user);
+        }
+    }
+
+    void invalidateAllPermissions() {
+        List<AbilityUser> users = this.snapshot;
+        for (int i = 0, size = users.size(); i < size; i++) {
+            if (users.get(i) instanceof PlayerAbilityUser user) {
+                user.invalidatePermissionCache();
+                markDirty(user);
+            }
+        }
+    }
+
+    private void markDirty(Player player) {
+        AbilityUser user = users.get(player.getUniqueId());
+        if (user != null) {
+            markDirty(user);
+        }
+    }
+
     @EventHandler
     public void on(PlayerQuitEvent event) {
-        AbilityUser user = users.remove(event.getPlayer());
+        AbilityUser user = removeUser(event.getPlayer());
         if (user != null) {
             abilityInstanceService.destroyAbilityUserInstances(user);
         }
@@ -143,7 +326,7 @@ public class AbilityUserService implements Listener {
     public void on(EntityRemoveFromWorldEvent event) {
         if (event.getEntity() instanceof LivingEntity entity) {
             if (!(entity instanceof Player)) {
-                AbilityUser user = users.remove(entity);
+                AbilityUser user = removeUser(entity);
                 if (user != null) {
                     abilityInstanceService.destroyAbilityUserInstances(user);
                 }
@@ -155,7 +338,7 @@ public class AbilityUserService implements Listener {
     public void on(EntityDeathEvent event) {
         LivingEntity entity = event.getEntity();
         if (!(entity instanceof Player)) {
-            AbilityUser user = users.remove(entity);
+            AbilityUser user = removeUser(entity);
             if (user != null) {
                 abilityInstanceService.destroyAbilityUserInstances(user);
             }
@@ -164,11 +347,49 @@ public class AbilityUserService implements Listener {
 
     @EventHandler(priority = EventPriority.HIGH)
     public void on(AbilitySlotsReloadEvent event) {
-        this.users.values().forEach(abilityUser -> {
+        this.snapshot.forEach(abilityUser -> {
             if (abilityUser instanceof PlayerAbilityUser user) {
                 user.getEnergyBar().getBossBar().removeAll();
             }
         });
         this.users.clear();
+        this.snapshot = List.of();
+        this.dirtyUsers.clear();
+        this.pending.clear();
+        this.restoringUsers.clear();
+        this.passiveSweep.reset();
+        this.permissionSweep.reset();
+    }
+
+    private record PendingReconcile(long tick, AbilityUser user) implements Comparable<PendingReconcile> {
+        @Override
+        public int compareTo(PendingReconcile other) {
+            return Long.compare(tick, other.tick);
+        }
+    }
+
+    /**
+     * Visits every user once per period, spread evenly across ticks.
+     */
+    private static final class Sweep {
+        private List<AbilityUser> users = List.of();
+        private int cursor = 0;
+
+        private void advance(List<AbilityUser> snapshot, int period, Consumer<AbilityUser> consumer) {
+            if (period <= 0) return;
+            if (cursor >= users.size()) {
+                users = snapshot;
+                cursor = 0;
+            }
+            int count = (users.size() + period - 1) / period;
+            for (int end = Math.min(users.size(), cursor + count); cursor < end; cursor++) {
+                consumer.accept(users.get(cursor));
+            }
+        }
+
+        private void reset() {
+            users = List.of();
+            cursor = 0;
+        }
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package ru.ckateptb.abilityslots.service;
+
+import com.destroystokyo.paper.event.server.ServerTickStartEvent;
+import lombok.Getter;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
+import ru.ckateptb.abilityslots.config.ClockMode;
+import ru.ckateptb.tablecloth.ioc.annotation.Component;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Plugin-wide time in millis, sampled once at the start of every server tick.
+ * <p>
+ * Everything evaluated during one tick sees the same time, so cooldowns and durations are consistent within a tick.
+ * In {@link ClockMode#SERVER_TICK} mode the time advances exactly 50ms per tick and slows down together with the server.
+ */
+@Component
+public class ClockService implements Listener {
+    public static final long TICK_MILLIS = 50;
+    private final AbilitySlotsConfig config;
+    private LongSupplier source = System::currentTimeMillis;
+    private volatile long time;
+    @Getter
+    private volatile long tick;
+
+    public ClockService(AbilitySlotsConfig config) {
+        this.config = config;
+        this.time = source.getAsLong();
+    }
+
+    /**
+     * @return time in millis at the start of the current tick
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Replace the real time source, e.g. with a controllable fake clock. The time is re-sampled immediately.
+     */
+    public void setSource(LongSupplier source) {
+        this.source = source;
+        this.time = source.getAsLong();
+    }
+
+    /**
+     * Advance the clock, called at the start of every server tick.
+     */
+    public void sample() {
+        this.tick++;
+        if (config.getClockMode() == ClockMode.SERVER_TICK) {
+            this.time += TICK_MILLIS;
+        } else {
+            this.time = source.getAsLong();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void on(ServerTickStartEvent event) {
+        sample();
+    }
+}
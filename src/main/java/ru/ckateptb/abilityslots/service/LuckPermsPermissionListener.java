@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.service;
+
+import net.luckperms.api.LuckPermsProvider;
+import net.luckperms.api.event.EventBus;
+import net.luckperms.api.event.group.GroupDataRecalculateEvent;
+import net.luckperms.api.event.user.UserDataRecalculateEvent;
+import org.bukkit.Bukkit;
+import ru.ckateptb.abilityslots.AbilitySlots;
+
+import java.util.UUID;
+
+/**
+ * Drops cached permission decisions as soon as LuckPerms recalculates them. LuckPerms fires its events
+ * asynchronously and unsubscribes them when AbilitySlots is disabled.
+ */
+final class LuckPermsPermissionListener {
+    LuckPermsPermissionListener(AbilityUserService userService) {
+        AbilitySlots plugin = AbilitySlots.getInstance();
+        EventBus eventBus = LuckPermsProvider.get().getEventBus();
+        eventBus.subscribe(plugin, UserDataRecalculateEvent.class, event -> {
+            UUID uuid = event.getUser().getUniqueId();
+            Bukkit.getScheduler().runTask(plugin, () -> userService.invalidatePermissions(uuid));
+        });
+        // Group changes are followed by user recalculations only for users whose data is loaded
+        eventBus.subscribe(plugin, GroupDataRecalculateEvent.class, event ->
+                Bukkit.getScheduler().runTask(plugin, userService::invalidateAllPermissions)
+        );
+    }
+}
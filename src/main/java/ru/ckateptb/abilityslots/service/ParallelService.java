@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2022 CKATEPTb <https://github.com/CKATEPTb>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ru.ckateptb.abilityslots.service;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
+import ru.ckateptb.abilityslots.AbilitySlots;
+import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
+import ru.ckateptb.tablecloth.ioc.annotation.Component;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The plugin-wide worker pool for the parallel parts of a tick.
+ * <p>
+ * The ability compute phase and the collision narrow phase both run from the main thread and wait for their workers,
+ * so they never run at the same time and share one pool instead of competing for the same cores.
+ */
+@Component
+public class ParallelService implements Listener {
+    private final AbilitySlotsConfig config;
+    private ForkJoinPool pool;
+
+    public ParallelService(AbilitySlotsConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @return the pool sized by {@code global.parallelism}, null if the work should stay on the main thread
+     */
+    public ForkJoinPool getPool() {
+        int parallelism = config.getParallelism();
+        if (parallelism <= 0) {
+            parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        if (parallelism == 1) {
+            shutdown();
+            return null;
+        }
+        if (pool == null || pool.getParallelism() != parallelism) {
+            shutdown();
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    private void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    @EventHandler
+    public void on(PluginDisableEvent event) {
+        if (event.getPlugin().equals(AbilitySlots.getInstance())) {
+            shutdown();
+        }
+    }
+}
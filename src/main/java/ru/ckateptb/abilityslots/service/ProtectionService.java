@@ -17,38 +17,63 @@
 
 package ru.ckateptb.abilityslots.service;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
-import org.bukkit.event.entity.EntityDeathEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.util.BoundingBox;
+import ru.ckateptb.abilityslots.AbilitySlots;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
 import ru.ckateptb.abilityslots.entity.AbilityTargetLiving;
 import ru.ckateptb.abilityslots.protection.*;
+import ru.ckateptb.abilityslots.user.AbilityUser;
 import ru.ckateptb.tablecloth.cache.Cache;
 import ru.ckateptb.tablecloth.cache.Caffeine;
+import ru.ckateptb.tablecloth.ioc.IoC;
 import ru.ckateptb.tablecloth.ioc.annotation.Component;
+import ru.ckateptb.tablecloth.ioc.annotation.Scheduled;
 
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 @Slf4j
 @Getter
 @Component
 public class ProtectionService implements Listener, Iterable<Protection> {
+    private static final int PREFETCH_LIMIT = 64;
     private final AbilitySlotsConfig config;
-    private final Set<Protection> protectionPlugins = new HashSet<>();
-    // For optimize caching, we must use Block, because its location is always static without yaw and pitch
-    private final Map<UUID, Cache<BlockPos, Boolean>> cache = new HashMap<>();
+    // Kept in registration order, so protections are always asked in the same order
+    private final Set<Protection> protectionPlugins = new LinkedHashSet<>();
+    // Protection is decided per chunk, only chunks that are not uniform are decided per block
+    private final Map<UUID, Cache<ChunkPos, ChunkProtection>> cache = new HashMap<>();
+    // Non-player entities are checked by location only, so they share a single cache
+    @Getter(AccessLevel.NONE)
+    private Cache<ChunkPos, ChunkProtection> entityCache;
+    @Getter(AccessLevel.NONE)
+    private final ExecutorService executorService = Executors.newFixedThreadPool(1);
+    @Getter(AccessLevel.NONE)
+    private final Set<Prefetch> pending = new HashSet<>();
+    @Getter(AccessLevel.NONE)
+    private final Queue<PrefetchResult> prefetched = new ConcurrentLinkedQueue<>();
+    // Prefetches requested before an invalidation may carry outdated results
+    @Getter(AccessLevel.NONE)
+    private int invalidations = 0;
 
     public ProtectionService(AbilitySlotsConfig config) {
         this.config = config;
@@ -62,6 +87,10 @@ public class ProtectionService implements Listener, Iterable<Protection> {
         Plugin plugin = Bukkit.getPluginManager().getPlugin(name);
         if (plugin != null) {
             Protection protection = factory.apply(plugin);
+            protection.setInvalidator(this::invalidate);
+            if (protection instanceof Listener listener) {
+                Bukkit.getPluginManager().registerEvents(listener, AbilitySlots.getInstance());
+            }
             protectionPlugins.add(protection);
             log.info("Registered protection for " + name);
         }
@@ -69,17 +98,195 @@ public class ProtectionService implements Listener, Iterable<Protection> {
 
     public boolean canUse(AbilityTargetLiving user, Location location) {
         LivingEntity entity = user.getEntity();
-        UUID uuid = entity.getUniqueId();
+        return getChunk(entity, location.getWorld(), location.getBlockX() >> 4, location.getBlockZ() >> 4).canUse(entity, location);
+    }
+
+    /**
+     * Check every block of the box, grouped by chunk. See {@link ru.ckateptb.abilityslots.user.AbilityUser#canUse(World, int, int, int, int, int, int)}
+     * for the bit layout.
+     */
+    public BitSet canUse(AbilityTargetLiving user, World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        BitSet result = new BitSet();
+        if (minX > maxX || minY > maxY || minZ > maxZ) return result;
+        LivingEntity entity = user.getEntity();
+        int sizeX = maxX - minX + 1;
+        int sizeZ = maxZ - minZ + 1;
+        Location location = new Location(world, 0, 0, 0);
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            int fromX = Math.max(minX, chunkX << 4);
+            int toX = Math.min(maxX, (chunkX << 4) + 15);
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                ChunkProtection chunk = getChunk(entity, world, chunkX, chunkZ);
+                if (chunk.getResult() == ProtectionResult.DENY) continue;
+                int fromZ = Math.max(minZ, chunkZ << 4);
+                int toZ = Math.min(maxZ, (chunkZ << 4) + 15);
+                for (int y = minY; y <= maxY; y++) {
+                    for (int z = fromZ; z <= toZ; z++) {
+                        int row = ((y - minY) * sizeZ + (z - minZ)) * sizeX - minX;
+                        if (chunk.getResult() == ProtectionResult.ALLOW) {
+                            result.set(row + fromX, row + toX + 1);
+                            continue;
+                        }
+                        location.setY(y);
+                        location.setZ(z);
+                        for (int x = fromX; x <= toX; x++) {
+                            location.setX(x);
+                            if (chunk.canUse(entity, location)) result.set(row + x);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check every block of the list, each chunk is looked up once.
+     */
+    public BitSet canUse(AbilityTargetLiving user, List<Block> blocks) {
+        BitSet result = new BitSet(blocks.size());
+        LivingEntity entity = user.getEntity();
+        Map<ChunkPos, ChunkProtection> chunks = new HashMap<>();
+        Location location = new Location(null, 0, 0, 0);
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            World world = block.getWorld();
+            int chunkX = block.getX() >> 4;
+            int chunkZ = block.getZ() >> 4;
+            ChunkProtection chunk = chunks.computeIfAbsent(new ChunkPos(world, chunkX, chunkZ), pos -> getChunk(entity, world, chunkX, chunkZ));
+            location.setWorld(world);
+            location.setX(block.getX());
+            location.setY(block.getY());
+            location.setZ(block.getZ());
+            if (chunk.canUse(entity, location)) result.set(i);
+        }
+        return result;
+    }
+
+    public ChunkProtection getChunk(LivingEntity entity, World world, int chunkX, int chunkZ) {
+        Cache<ChunkPos, ChunkProtection> chunks = entity instanceof Player ? getCache(entity.getUniqueId()) : getEntityCache();
+        ChunkPos pos = new ChunkPos(world, chunkX, chunkZ);
+        ChunkProtection chunk = chunks.get(pos, key -> ChunkProtection.compute(protectionPlugins, entity, world, chunkX, chunkZ));
+        if (!isFresh(chunk)) {
+            chunk = ChunkProtection.compute(protectionPlugins, entity, world, chunkX, chunkZ);
+            chunks.put(pos, chunk);
+        }
+        return chunk;
+    }
+
+    // The cache expires entries after the long duration, decisions of protections that miss changes expire sooner
+    private boolean isFresh(ChunkProtection chunk) {
+        return chunk.isReported() || !chunk.isOlderThan(config.getProtectionUnreportedCacheDuration());
+    }
+
+    private Cache<ChunkPos, ChunkProtection> getCache(UUID uuid) {
         return cache.computeIfAbsent(uuid, key ->
-                Caffeine.newBuilder().expireAfterAccess(Duration.ofMillis(config.getProtectionCacheDuration())).build()
-        ).get(new BlockPos(location), loc -> this.stream().allMatch(protection -> protection.canUse(entity, location)));
+                Caffeine.newBuilder().expireAfterWrite(Duration.ofMillis(config.getProtectionCacheDuration())).build()
+        );
+    }
+
+    /**
+     * Drop cached decisions of every user in the chunks touched by the area
+     *
+     * @param world the world of the area, null for every world
+     * @param area  the changed blocks, null for the whole world
+     */
+    public void invalidate(World world, BoundingBox area) {
+        invalidations++;
+        Predicate<ChunkPos> affected = pos -> (world == null || pos.world().equals(world)) && (area == null || pos.intersects(area));
+        cache.values().forEach(chunks -> chunks.asMap().keySet().removeIf(affected));
+        if (entityCache != null) {
+            entityCache.asMap().keySet().removeIf(affected);
+        }
+    }
+
+    private Cache<ChunkPos, ChunkProtection> getEntityCache() {
+        if (entityCache == null) {
+            entityCache = Caffeine.newBuilder()
+                    .maximumSize(config.getProtectionEntityCacheSize())
+                    .expireAfterWrite(Duration.ofMillis(config.getProtectionCacheDuration()))
+                    .build();
+        }
+        return entityCache;
+    }
+
+    @Scheduled(delay = 5, period = 5)
+    public void prefetch() {
+        PrefetchResult result;
+        while ((result = prefetched.poll()) != null) {
+            Prefetch prefetch = result.prefetch();
+            pending.remove(prefetch);
+            if (prefetch.invalidations() != invalidations) continue;
+            Player player = Bukkit.getPlayer(prefetch.user());
+            if (player == null) continue;
+            ChunkPos pos = prefetch.pos();
+            Cache<ChunkPos, ChunkProtection> chunks = getCache(prefetch.user());
+            ChunkProtection cached = chunks.asMap().get(pos);
+            if (cached != null && isFresh(cached)) continue;
+            chunks.put(pos, ChunkProtection.compute(protectionPlugins, player, pos.world(), pos.x(), pos.z(), result.results()));
+        }
+        int radius = config.getProtectionPrefetchRadius();
+        if (radius <= 0 || protectionPlugins.isEmpty()) return;
+        int chunkRadius = (radius + 15) >> 4;
+        int requested = 0;
+        for (AbilityUser user : IoC.get(AbilityUserService.class).getUsers()) {
+            if (!(user.getEntity() instanceof Player player) || user.getSelectedAbility() == null) continue;
+            Location location = player.getLocation();
+            World world = location.getWorld();
+            Map<ChunkPos, ChunkProtection> chunks = getCache(player.getUniqueId()).asMap();
+            int centerX = location.getBlockX() >> 4;
+            int centerZ = location.getBlockZ() >> 4;
+            Map<Protection, ChunkQuery> queries = null;
+            for (int chunkX = centerX - chunkRadius; chunkX <= centerX + chunkRadius; chunkX++) {
+                for (int chunkZ = centerZ - chunkRadius; chunkZ <= centerZ + chunkRadius; chunkZ++) {
+                    ChunkPos pos = new ChunkPos(world, chunkX, chunkZ);
+                    Prefetch prefetch = new Prefetch(player.getUniqueId(), pos, invalidations);
+                    ChunkProtection cached = chunks.get(pos);
+                    if ((cached != null && isFresh(cached)) || !pending.add(prefetch)) continue;
+                    if (queries == null) {
+                        queries = prepareChunkQueries(player, world);
+                    }
+                    if (queries.isEmpty()) {
+                        prefetched.add(new PrefetchResult(prefetch, Map.of()));
+                    } else {
+                        Map<Protection, ChunkQuery> userQueries = queries;
+                        executorService.execute(() -> prefetchAsync(prefetch, userQueries));
+                    }
+                    if (++requested >= PREFETCH_LIMIT) return;
+                }
+            }
+        }
+    }
+
+    // Runs on the main thread, the prepared queries are then shared by the worker tasks of the player
+    private Map<Protection, ChunkQuery> prepareChunkQueries(Player player, World world) {
+        Map<Protection, ChunkQuery> queries = new HashMap<>();
+        for (Protection protection : protectionPlugins) {
+            ChunkQuery query = protection.prepareChunkQuery(player, world);
+            if (query != null) queries.put(protection, query);
+        }
+        return queries;
+    }
+
+    private void prefetchAsync(Prefetch prefetch, Map<Protection, ChunkQuery> queries) {
+        Map<Protection, ProtectionResult> results = new HashMap<>();
+        ChunkPos pos = prefetch.pos();
+        try {
+            for (Map.Entry<Protection, ChunkQuery> entry : queries.entrySet()) {
+                results.put(entry.getKey(), entry.getValue().canUse(pos.x(), pos.z()));
+            }
+        } catch (Exception e) {
+            log.warn("Failed to prefetch protection", e);
+            results.clear();
+        }
+        prefetched.add(new PrefetchResult(prefetch, results));
     }
 
     @EventHandler
-    public void on(EntityDeathEvent event) {
-        LivingEntity entity = event.getEntity();
-        if (entity instanceof Player) return;
-        cache.remove(entity.getUniqueId());
+    public void on(PluginDisableEvent event) {
+        if (event.getPlugin().equals(AbilitySlots.getInstance())) {
+            executorService.shutdownNow();
+        }
     }
 
     @EventHandler
@@ -96,29 +303,16 @@ public class ProtectionService implements Listener, Iterable<Protection> {
         return Collections.unmodifiableCollection(protectionPlugins).iterator();
     }
 
-    private static class BlockPos {
-        private final int x;
-        private final int y;
-        private final int z;
-        private final World world;
-
-        public BlockPos(Location location) {
-            this.world = location.getWorld();
-            this.x = location.getBlockX();
-            this.y = location.getBlockY();
-            this.z = location.getBlockZ();
+    private record ChunkPos(World world, int x, int z) {
+        private boolean intersects(BoundingBox area) {
+            return (x << 4) < area.getMaxX() && (x << 4) + 16 > area.getMinX()
+                    && (z << 4) < area.getMaxZ() && (z << 4) + 16 > area.getMinZ();
         }
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj == this) return true;
-            if (!(obj instanceof BlockPos other)) return false;
-            return this.x == other.x && this.y == other.y && this.z == other.z && this.world.equals(other.world);
-        }
+    private record Prefetch(UUID user, ChunkPos pos, int invalidations) {
+    }
 
-        @Override
-        public int hashCode() {
-            return ((this.y + this.z * 31) * 31 + this.x) ^ this.world.hashCode();
-        }
+    private record PrefetchResult(Prefetch prefetch, Map<Protection, ProtectionResult> results) {
     }
 }
@@ -18,10 +18,13 @@
 package ru.ckateptb.abilityslots.user;
 
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.entity.LivingEntity;
 import ru.ckateptb.abilityslots.ability.Ability;
 import ru.ckateptb.abilityslots.ability.enums.ActivationMethod;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
+import ru.ckateptb.abilityslots.category.AbilityCategory;
 import ru.ckateptb.abilityslots.energy.EnergyHolder;
 import ru.ckateptb.abilityslots.entity.AbilityTargetLiving;
 import ru.ckateptb.abilityslots.predicate.AbilityConditional;
@@ -29,6 +32,7 @@ import ru.ckateptb.abilityslots.service.AbilityInstanceService;
 import ru.ckateptb.abilityslots.slot.AbilitySlotContainer;
 import ru.ckateptb.tablecloth.ioc.IoC;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -65,6 +69,13 @@ public interface AbilityUser extends AbilityTargetLiving, EnergyHolder {
 
     Map<AbilityInformation, Long> getCooldowns();
 
+    /**
+     * @return time in millis when the cooldown of the ability ends, 0 if it was never set
+     */
+    default long getCooldownEnd(AbilityInformation ability) {
+        return getCooldowns().getOrDefault(ability, 0L);
+    }
+
     boolean canActivate(AbilityInformation ability);
 
     AbilityConditional getAbilityActivateConditional();
@@ -77,6 +88,47 @@ public interface AbilityUser extends AbilityTargetLiving, EnergyHolder {
 
     boolean canUse(Location location);
 
+    /**
+     * Check every block of the box at once, bounds are inclusive.
+     *
+     * @return bit {@code ((y - minY) * sizeZ + (z - minZ)) * sizeX + (x - minX)} is set if the block can be used
+     */
+    default BitSet canUse(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        BitSet result = new BitSet();
+        Location location = new Location(world, 0, 0, 0);
+        int index = 0;
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++, index++) {
+                    location.setX(x);
+                    location.setY(y);
+                    location.setZ(z);
+                    if (canUse(location)) result.set(index);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return bit {@code i} is set if the i-th block can be used
+     */
+    default BitSet canUse(List<Block> blocks) {
+        BitSet result = new BitSet(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            if (canUse(blocks.get(i).getLocation())) result.set(i);
+        }
+        return result;
+    }
+
+    default boolean hasPermission(AbilityInformation ability) {
+        return hasPermission(ability.getPermission());
+    }
+
+    default boolean hasPermission(AbilityCategory category) {
+        return hasPermission(category.getPermission());
+    }
+
     default Collection<? extends Ability> getActiveAbilities() {
         return IoC.get(AbilityInstanceService.class).getAbilityUserInstances(this);
     }
@@ -86,7 +138,7 @@ public interface AbilityUser extends AbilityTargetLiving, EnergyHolder {
     }
 
     default Collection<? extends Ability> getPassives() {
-        return getActiveAbilities().stream().filter(ability -> ability.getInformation().isActivatedBy(ActivationMethod.PASSIVE)).collect(Collectors.toList());
+        return IoC.get(AbilityInstanceService.class).getAbilityUserInstancesView(this).stream().filter(ability -> ability.getInformation().isActivatedBy(ActivationMethod.PASSIVE)).collect(Collectors.toList());
     }
 
     default boolean destroyAbility(Class<? extends Ability> type) {
@@ -19,24 +19,51 @@ package ru.ckateptb.abilityslots.user;
 
 import org.bukkit.GameMode;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.entity.LivingEntity;
 import ru.ckateptb.abilityslots.predicate.AbilityConditional;
+import ru.ckateptb.abilityslots.ability.enums.ActivationMethod;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
 import ru.ckateptb.abilityslots.board.AbilityBoardHolder;
 import ru.ckateptb.abilityslots.config.AbilityCastPreventType;
 import ru.ckateptb.abilityslots.config.AbilitySlotsConfig;
+import ru.ckateptb.abilityslots.service.AbilityService;
+import ru.ckateptb.abilityslots.service.AbilityUserService;
+import ru.ckateptb.abilityslots.service.ClockService;
 import ru.ckateptb.abilityslots.slot.AbilitySlotContainer;
 import ru.ckateptb.abilityslots.slot.DefaultAbilitySlotContainer;
+import ru.ckateptb.tablecloth.ioc.IoC;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 public class LivingEntityAbilityUser implements AbilityUser, AbilityBoardHolder {
     protected final LivingEntity livingEntity;
     protected final AbilitySlotsConfig config;
-    private final Map<AbilityInformation, Long> cooldowns = new HashMap<>();
+    private final AbilityService abilityService = IoC.get(AbilityService.class);
+    private final ClockService clock = IoC.get(ClockService.class);
+    // Cooldown end by ability ordinal, 0 if the ability was never on cooldown. Dropped on reload with the ordinals
+    private long[] cooldownEnds = new long[0];
+    private int cooldownGeneration = abilityService.getGeneration();
+    // Abilities without an ordinal (not registered in AbilityService)
+    private final Map<AbilityInformation, Long> unindexedCooldowns = new HashMap<>();
+    private final Map<AbilityInformation, Long> cooldowns = new CooldownView();
+    // Cooldown ends ordered by time, one entry per ability
+    private final PriorityQueue<CooldownExpiry> cooldownQueue = new PriorityQueue<>();
+    // Incremented whenever a cooldown is set, lets the board skip rendering when nothing changed
+    private volatile long cooldownVersion = 0;
     protected AbilitySlotContainer slotContainer;
     private final List<AbilityConditional> customAbilityActivateConditionals = new ArrayList<>();
     private AbilityConditional abilityActivateConditional = new AbilityConditional.Builder()
@@ -88,24 +115,112 @@ public class LivingEntityAbilityUser implements AbilityUser, AbilityBoardHolder
         if (config.getCastPreventType() == AbilityCastPreventType.ENERGY) {
             return;
         }
-        long current = cooldowns.getOrDefault(ability, 0L);
+        long current = getCooldownEnd(ability);
 
         // Only set cooldown if the new one is larger.
-        if (duration > 0 && duration > current - System.currentTimeMillis()) {
-            cooldowns.put(ability, System.currentTimeMillis() + duration);
+        long time = clock.getTime();
+        if (duration > 0 && duration > current - time) {
+            setCooldownEnd(ability, time + duration);
+            if (ability.isActivatedBy(ActivationMethod.PASSIVE)) {
+                // Passives are not re-checked periodically, wake up when the cooldown expires
+                IoC.get(AbilityUserService.class).markDirty(this, duration / 50 + 1);
+            }
         }
     }
 
     @Override
     public boolean hasCooldown(AbilityInformation ability) {
-        if (!cooldowns.containsKey(ability)) {
-            return false;
+        return clock.getTime() < getCooldownEnd(ability);
+    }
+
+    @Override
+    public long getCooldownEnd(AbilityInformation ability) {
+        int ordinal = ability.getOrdinal();
+        if (ordinal < 0) {
+            return unindexedCooldowns.getOrDefault(ability, 0L);
+        }
+        long[] ends = this.cooldownEnds;
+        if (cooldownGeneration != abilityService.getGeneration() || ordinal >= ends.length) return 0;
+        return ends[ordinal];
+    }
+
+    private void setCooldownEnd(AbilityInformation ability, long end) {
+        long previous = getCooldownEnd(ability);
+        int ordinal = ability.getOrdinal();
+        if (ordinal < 0) {
+            if (end == 0) {
+                unindexedCooldowns.remove(ability);
+            } else {
+                unindexedCooldowns.put(ability, end);
+            }
+        } else {
+            int generation = abilityService.getGeneration();
+            if (cooldownGeneration != generation) {
+                cooldownGeneration = generation;
+                cooldownEnds = new long[0];
+            }
+            if (ordinal >= cooldownEnds.length) {
+                cooldownEnds = Arrays.copyOf(cooldownEnds, Math.max(ordinal + 1, abilityService.getAbilityCount()));
+            }
+            cooldownEnds[ordinal] = end;
         }
+        synchronized (cooldownQueue) {
+            // At most one entry per ability, so the queue stays bounded even if nobody polls it
+            if (previous != 0) {
+                cooldownQueue.remove(new CooldownExpiry(ability, previous));
+            }
+            if (end != 0) {
+                cooldownQueue.add(new CooldownExpiry(ability, end));
+            }
+            pruneCooldowns(clock.getTime());
+        }
+        cooldownVersion++;
+    }
 
-        long time = System.currentTimeMillis();
-        long end = cooldowns.get(ability);
+    /**
+     * @return abilities that are on cooldown now, ordered by cooldown end
+     */
+    public List<AbilityInformation> getActiveCooldowns() {
+        long time = clock.getTime();
+        synchronized (cooldownQueue) {
+            pruneCooldowns(time);
+            if (cooldownQueue.isEmpty()) return Collections.emptyList();
+            CooldownExpiry[] expiries = cooldownQueue.toArray(new CooldownExpiry[0]);
+            Arrays.sort(expiries);
+            List<AbilityInformation> result = new ArrayList<>(expiries.length);
+            for (CooldownExpiry expiry : expiries) {
+                if (expiry.end() > time && isCurrent(expiry)) {
+                    result.add(expiry.ability());
+                }
+            }
+            return result;
+        }
+    }
 
-        return time < end;
+    /**
+     * @return time of the nearest cooldown end or {@link Long#MAX_VALUE} if no ability is on cooldown
+     */
+    public long getNextCooldownExpiry() {
+        synchronized (cooldownQueue) {
+            pruneCooldowns(clock.getTime());
+            CooldownExpiry expiry = cooldownQueue.peek();
+            return expiry == null ? Long.MAX_VALUE : expiry.end();
+        }
+    }
+
+    private void pruneCooldowns(long time) {
+        CooldownExpiry expiry;
+        while ((expiry = cooldownQueue.peek()) != null && (expiry.end() <= time || !isCurrent(expiry))) {
+            cooldownQueue.poll();
+        }
+    }
+
+    private boolean isCurrent(CooldownExpiry expiry) {
+        return getCooldownEnd(expiry.ability()) == expiry.end();
+    }
+
+    public long getCooldownVersion() {
+        return cooldownVersion;
     }
 
     @Override
@@ -143,6 +258,22 @@ public class LivingEntityAbilityUser implements AbilityUser, AbilityBoardHolder
         return true;
     }
 
+    @Override
+    public BitSet canUse(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        BitSet result = new BitSet();
+        if (minX <= maxX && minY <= maxY && minZ <= maxZ) {
+            result.set(0, (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1));
+        }
+        return result;
+    }
+
+    @Override
+    public BitSet canUse(List<Block> blocks) {
+        BitSet result = new BitSet(blocks.size());
+        result.set(0, blocks.size());
+        return result;
+    }
+
     @Override
     public void updateAbilityBoard() {
 
@@ -205,4 +336,121 @@ public class LivingEntityAbilityUser implements AbilityUser, AbilityBoardHolder
     public boolean isEnergyBarEnabled() {
         return false;
     }
+
+    /**
+     * Map view over the cooldown ends, kept for compatibility. Prefer {@link #getCooldownEnd(AbilityInformation)}.
+     */
+    private class CooldownView extends AbstractMap<AbilityInformation, Long> {
+        @Override
+        public Long get(Object key) {
+            if (!(key instanceof AbilityInformation ability)) return null;
+            long end = getCooldownEnd(ability);
+            return end == 0 ? null : end;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Long put(AbilityInformation key, Long value) {
+            Long previous = get(key);
+            setCooldownEnd(key, value == null ? 0 : value);
+            return previous;
+        }
+
+        @Override
+        public Long remove(Object key) {
+            Long previous = get(key);
+            if (previous != null) {
+                setCooldownEnd((AbilityInformation) key, 0);
+            }
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            unindexedCooldowns.clear();
+            cooldownEnds = new long[0];
+            synchronized (cooldownQueue) {
+                cooldownQueue.clear();
+            }
+            cooldownVersion++;
+        }
+
+        /**
+         * Iterates over a snapshot, removal and {@link Entry#setValue(Object)} write through to the cooldowns.
+         */
+        @Override
+        public Set<Entry<AbilityInformation, Long>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<AbilityInformation, Long>> iterator() {
+                    Iterator<Entry<AbilityInformation, Long>> iterator = snapshot().iterator();
+                    return new Iterator<>() {
+                        private Entry<AbilityInformation, Long> current;
+
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Entry<AbilityInformation, Long> next() {
+                            Entry<AbilityInformation, Long> entry = iterator.next();
+                            current = entry;
+                            return new CooldownEntry(entry.getKey(), entry.getValue());
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (current == null) throw new IllegalStateException();
+                            CooldownView.this.remove(current.getKey());
+                            current = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return snapshot().size();
+                }
+            };
+        }
+
+        private Map<AbilityInformation, Long> snapshot() {
+            Map<AbilityInformation, Long> entries = new LinkedHashMap<>(unindexedCooldowns);
+            long[] ends = cooldownEnds;
+            if (cooldownGeneration == abilityService.getGeneration()) {
+                for (int ordinal = 0; ordinal < ends.length; ordinal++) {
+                    if (ends[ordinal] == 0) continue;
+                    AbilityInformation ability = abilityService.getAbility(ordinal);
+                    if (ability != null) {
+                        entries.put(ability, ends[ordinal]);
+                    }
+                }
+            }
+            return entries;
+        }
+
+        private class CooldownEntry extends SimpleEntry<AbilityInformation, Long> {
+            private CooldownEntry(AbilityInformation key, Long value) {
+                super(key, value);
+            }
+
+            @Override
+            public Long setValue(Long value) {
+                put(getKey(), value);
+                return super.setValue(value);
+            }
+        }
+    }
+
+    private record CooldownExpiry(AbilityInformation ability, long end) implements Comparable<CooldownExpiry> {
+        @Override
+        public int compareTo(CooldownExpiry other) {
+            return Long.compare(end, other.end);
+        }
+    }
 }
@@ -19,6 +19,8 @@ package ru.ckateptb.abilityslots.user;
 
 import lombok.Getter;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import ru.ckateptb.abilityslots.ability.info.AbilityInformation;
 import ru.ckateptb.abilityslots.board.AbilityBoard;
@@ -41,8 +43,11 @@ import ru.ckateptb.tablecloth.async.AsyncService;
 import ru.ckateptb.tablecloth.storage.ormlite.dao.Dao;
 
 import java.sql.SQLException;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -63,6 +68,13 @@ public class PlayerAbilityUser extends LivingEntityAbilityUser implements Abilit
     private final String uuid;
     private final AsyncService asyncService;
     private final ProtectionService protectionService;
+    private final AbilityService abilityService;
+    // Permission decisions, abilities are indexed by ordinal. Dropped by invalidatePermissionCache and on reload
+    private final Object permissionLock = new Object();
+    private final BitSet resolvedPermissions = new BitSet();
+    private final BitSet allowedPermissions = new BitSet();
+    private final Map<AbilityCategory, Boolean> categoryPermissions = new IdentityHashMap<>();
+    private int permissionGeneration;
     private boolean presetsIsLocked = false;
     private double energy = 0;
 
@@ -86,6 +98,8 @@ public class PlayerAbilityUser extends LivingEntityAbilityUser implements Abilit
         this.uuid = livingEntity.getUniqueId().toString();
         this.asyncService = asyncService;
         this.protectionService = protectionService;
+        this.abilityService = abilityService;
+        this.permissionGeneration = abilityService.getGeneration();
         this.loadAbilityStorageAsync();
         this.loadPresetStorageAsync();
         abilityInstanceService.createPassives(this);
@@ -96,6 +110,64 @@ public class PlayerAbilityUser extends LivingEntityAbilityUser implements Abilit
         return protectionService.canUse(this, location);
     }
 
+    @Override
+    public BitSet canUse(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return protectionService.canUse(this, world, minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    @Override
+    public BitSet canUse(List<Block> blocks) {
+        return protectionService.canUse(this, blocks);
+    }
+
+    @Override
+    public boolean hasPermission(AbilityInformation ability) {
+        int ordinal = ability.getOrdinal();
+        if (ordinal < 0) return hasPermission(ability.getPermission());
+        synchronized (permissionLock) {
+            validatePermissionCache();
+            if (resolvedPermissions.get(ordinal)) return allowedPermissions.get(ordinal);
+            boolean allowed = hasPermission(ability.getPermission());
+            resolvedPermissions.set(ordinal);
+            allowedPermissions.set(ordinal, allowed);
+            return allowed;
+        }
+    }
+
+    @Override
+    public boolean hasPermission(AbilityCategory category) {
+        synchronized (permissionLock) {
+            validatePermissionCache();
+            Boolean allowed = categoryPermissions.get(category);
+            if (allowed == null) {
+                allowed = hasPermission(category.getPermission());
+                categoryPermissions.put(category, allowed);
+            }
+            return allowed;
+        }
+    }
+
+    /**
+     * Drop cached permission decisions, must be called when the player permissions may have changed.
+     */
+    public void invalidatePermissionCache() {
+        synchronized (permissionLock) {
+            resolvedPermissions.clear();
+            allowedPermissions.clear();
+            categoryPermissions.clear();
+        }
+    }
+
+    private void validatePermissionCache() {
+        int generation = abilityService.getGeneration();
+        if (permissionGeneration != generation) {
+            permissionGeneration = generation;
+            resolvedPermissions.clear();
+            allowedPermissions.clear();
+            categoryPermissions.clear();
+        }
+    }
+
     public int getHeldItemSlot() {
         return getEntity().getInventory().getHeldItemSlot() + 1;
     }
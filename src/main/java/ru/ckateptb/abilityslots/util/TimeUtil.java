@@ -20,7 +20,23 @@ package ru.ckateptb.abilityslots.util;
 import java.util.concurrent.TimeUnit;
 
 public class TimeUtil {
+    // Formatted values of the first hour by whole second, filled lazily. Races only repeat the formatting
+    private static final String[] CACHE = new String[3600];
+
     public static String formatTime(long time) {
+        if (time >= 0 && time < CACHE.length * 1000L) {
+            int second = (int) (time / 1000);
+            String formatted = CACHE[second];
+            if (formatted == null) {
+                formatted = format(time);
+                CACHE[second] = formatted;
+            }
+            return formatted;
+        }
+        return format(time);
+    }
+
+    private static String format(long time) {
         String sign = "";
         if (time < 0L) {
             sign = "-";